@@ -1,14 +1,49 @@
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 
 public class Client {
+    private static final int OUTBOUND_CAPACITY = 64; // messages waiting to be written before the Client is considered too slow
+    private static final int WRITE_CHUNK_SIZE = 8192;
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY = 1000; // time between attempts to reconnect, in milliseconds
+    private static final String TOKEN_PREFIX = "token to reconnect is \"";
+
     private Socket socket;
+    private BufferedReader reader;
+    private final StringBuilder received = new StringBuilder(); // part of the next message already received, kept if a receive times out
     private Player player;
     private long queueArrivalTime;
 
+    private final ArrayBlockingQueue<ByteBuffer> outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final byte[] writeChunk = new byte[WRITE_CHUNK_SIZE];
+    private volatile long writeStart = -1; // when the write in progress started, or -1 if there is none
+
+    // only used by a Client running on its own, to reconnect with the same factory, which keeps the TLS sessions to resume
+    private SocketFactory socketFactory;
+    private InetSocketAddress address;
+    private volatile String token;
+    private volatile long turnStart = -1; // when the sentence of this Client's turn was received, or -1 outside its turn
+
+    // only used by the Server: a message put back to be received again, and whether this Client's connection answers pings
+    private String unread;
+    private boolean answersPings = true;
+
     /**
      * Constructs a new Client object with a given socket.
      * @param socket new Client's socket
@@ -17,6 +52,18 @@ public class Client {
         this.socket = socket;
     }
 
+    /**
+     * Constructs a new Client object connected to a Server, which reconnects to it with its token if the connection breaks while waiting.
+     * @param socketFactory factory of the Client's sockets, plain or TLS
+     * @param address the Server's address
+     * @throws IOException If the connection could not be established
+     */
+    private Client(SocketFactory socketFactory, InetSocketAddress address) throws IOException {
+        this.socketFactory = socketFactory;
+        this.address = address;
+        this.socket = this.connect();
+    }
+
     /**
      * Runs a new Client object, connecting it to a socket with a given hostname and a given port.
      * @param args HOSTNAME PORT
@@ -36,10 +83,11 @@ public class Client {
         }
 
         try {
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(hostname, port));
+            // with a trust store, the connection uses TLS and every reconnection resumes the same session
+            SSLContext tlsContext = Tls.clientContext();
+            SocketFactory socketFactory = tlsContext == null ? SocketFactory.getDefault() : tlsContext.getSocketFactory();
 
-            Client client = new Client(socket);
+            Client client = new Client(socketFactory, new InetSocketAddress(hostname, port));
             client.waiting();
         } catch (IOException e) {
             System.out.println("Client exception: " + e.getMessage() + ".");
@@ -79,6 +127,25 @@ public class Client {
      */
     public void setSocket(Socket socket) {
         this.socket = socket;
+        this.reader = null;
+        this.received.setLength(0);
+        this.unread = null;
+        this.answersPings = true;
+    }
+
+    /**
+     * Closes this Client's socket and takes over the connection of another Client, including any input it has already buffered.
+     * @param client Client whose connection is taken over
+     * @throws IOException If an I/O error occurred when closing this Client's socket
+     */
+    public void takeConnection(Client client) throws IOException {
+        this.socket.close();
+        this.socket = client.socket;
+        this.reader = client.reader;
+        this.received.setLength(0);
+        this.received.append(client.received);
+        this.unread = client.unread;
+        this.answersPings = client.answersPings;
     }
 
     /**
@@ -88,6 +155,20 @@ public class Client {
         this.queueArrivalTime = queueArrivalTime;
     }
 
+    /**
+     * @return true unless this Client's connection failed to answer a ping in time, so it is not pinged again
+     */
+    public boolean answersPings() {
+        return this.answersPings;
+    }
+
+    /**
+     * @param answersPings false if this Client's connection failed to answer a ping in time
+     */
+    public void setAnswersPings(boolean answersPings) {
+        this.answersPings = answersPings;
+    }
+
     /**
      * Checks if this Client has a Player associated.
      * @return true if this Client has a Player associated; false if otherwise
@@ -127,49 +208,328 @@ public class Client {
         return this.player.equals(client.getPlayer());
     }
 
+    /**
+     * Encodes a message once, so that it can be shared by every Client it is broadcast to.
+     * @param message message to encode
+     * @return read-only buffer with the encoded message, followed by a line separator
+     */
+    public static ByteBuffer encode(String message) {
+        return ByteBuffer.wrap((message + System.lineSeparator()).getBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Broadcasts a message to a group of Clients, encoding it only once.
+     * The message is enqueued on each Client's outbound queue, so a slow Client does not delay the others.
+     * @param clients Clients to send the message to
+     * @param message message to send
+     * @return the encoded message, which can be shared with the game's spectators
+     */
+    public static ByteBuffer broadcast(List<Client> clients, String message) {
+        ByteBuffer buffer = Client.encode(message);
+        for (Client client : clients) {
+            client.enqueueMessage(buffer);
+        }
+
+        return buffer;
+    }
+
     /**
      * Sends a message to this Client's socket.
+     * Any message still waiting in the outbound queue is written first, so the order of the messages is kept.
      * @param message message to send
      * @throws IOException If this Client has disconnected
      */
     public void sendMessage(String message) throws IOException {
-        OutputStream output = this.socket.getOutputStream();
-        PrintWriter writer = new PrintWriter(output, true);
-        writer.println(message);
-        writer.flush();
+        this.sendMessage(Client.encode(message));
+    }
+
+    /**
+     * Sends an already encoded message to this Client's socket, in the calling thread, without changing the buffer.
+     * Any message still waiting in the outbound queue is written first, so the order of the messages is kept.
+     * @param buffer encoded message to send
+     * @throws IOException If this Client has disconnected
+     */
+    public void sendMessage(ByteBuffer buffer) throws IOException {
+        this.writeLock.lock();
+        try {
+            this.writeOutbound();
+            this.write(buffer);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a watchdog that disconnects this Client if a write to its socket does not finish within a timeout.
+     * A blocking write has no timeout of its own, so the watchdog closes the socket, which makes the blocked write fail.
+     * The same watchdog checks every write until it is interrupted, waking up only when the write in progress would time out.
+     * @param timeout maximum time a write may take, in milliseconds
+     * @return the watchdog's thread, to interrupt once this Client no longer needs to be watched
+     */
+    public Thread watchWrites(long timeout) {
+        // the Client may not be authenticated, as a spectator, so it is identified by its address
+        return Thread.ofVirtual().start(() -> {
+            try {
+                while (true) {
+                    long writeStart = this.writeStart;
+                    long currentTime = System.currentTimeMillis();
+                    if (writeStart >= 0 && currentTime - writeStart >= timeout) {
+                        break;
+                    }
+                    Thread.sleep(writeStart >= 0 ? writeStart + timeout - currentTime : timeout);
+                }
+
+                System.out.println("Client at " + this.socket.getRemoteSocketAddress() + " did not read its messages for " + timeout / 1000 + " seconds and will be disconnected.");
+                // without lingering, the socket is closed at once, even with data still waiting to be sent
+                this.socket.setSoLinger(true, 0);
+                this.socket.close();
+            } catch (InterruptedException e) {
+                // this Client is no longer watched
+            } catch (IOException e) {
+                System.out.println("Client at " + this.socket.getRemoteSocketAddress() + " exception when disconnecting: " + e.getMessage() + ".");
+            }
+        });
+    }
+
+    /**
+     * Enqueues an already encoded message to be written to this Client's socket by a separate virtual thread.
+     * The buffer is never modified, so the same buffer can be enqueued on several Clients.
+     * If the outbound queue is full, this Client is too slow to keep up and it is disconnected.
+     * @param message encoded message to send
+     * @return true if the message was enqueued; false if this Client was disconnected for being too slow
+     */
+    public boolean enqueueMessage(ByteBuffer message) {
+        if (!this.outbound.offer(message)) {
+            System.out.println("Client " + this + " is too slow to receive messages and will be disconnected.");
+            this.outbound.clear();
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                System.out.println("Client " + this + " exception when disconnecting: " + e.getMessage() + ".");
+            }
+            return false;
+        }
+
+        if (this.draining.compareAndSet(false, true)) {
+            Thread.ofVirtual().start(this::drainOutbound);
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the messages in the outbound queue until it is empty.
+     * Only one virtual thread drains the outbound queue of this Client at a time.
+     */
+    private void drainOutbound() {
+        do {
+            this.writeLock.lock();
+            try {
+                this.writeOutbound();
+            } catch (IOException e) {
+                this.outbound.clear();
+                System.out.println("Client " + this + " was disconnected while receiving a broadcast message.");
+            } finally {
+                this.writeLock.unlock();
+            }
+
+            this.draining.set(false);
+            // a message may have been enqueued after the last write and before the flag was cleared
+        } while (!this.outbound.isEmpty() && this.draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Writes every message in the outbound queue to this Client's socket. Must be called while holding the write lock.
+     * @throws IOException If this Client has disconnected
+     */
+    private void writeOutbound() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = this.outbound.poll()) != null) {
+            this.write(buffer);
+        }
+    }
+
+    /**
+     * Writes an encoded message to this Client's socket without changing the buffer. Must be called while holding the write lock.
+     * @param buffer encoded message
+     * @throws IOException If this Client has disconnected
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        this.writeStart = System.currentTimeMillis();
+        try {
+            OutputStream output = this.socket.getOutputStream();
+            for (int position = buffer.position(); position < buffer.limit(); ) {
+                int length = Math.min(this.writeChunk.length, buffer.limit() - position);
+                buffer.get(position, this.writeChunk, 0, length);
+                output.write(this.writeChunk, 0, length);
+                position += length;
+            }
+            output.flush();
+        } finally {
+            this.writeStart = -1;
+        }
     }
 
     /**
      * Receives a message from this Client's socket.
+     * The reader is kept between calls, so messages sent in quick succession are not lost in a discarded buffer.
      * @return message received
      * @throws IOException If this Client has disconnected
      */
     public String receiveMessage() throws IOException {
-        InputStream input = this.socket.getInputStream();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-        StringBuilder message = new StringBuilder();
+        if (this.unread != null) {
+            String message = this.unread;
+            this.unread = null;
+            return message;
+        }
+
+        if (this.reader == null) {
+            this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        }
+
+        // the message is read one character at a time from the reader's buffer, so a receive that times out never loses part of a line
+        BufferedReader reader = this.reader;
+        StringBuilder message = this.received;
+
+        int character;
+        while ((character = reader.read()) >= 0) {
+            if (character == '\r') {
+                continue;
+            }
+            message.append((char) character);
+
+            if (character == '\n' && message.length() >= 4 && message.lastIndexOf("END\n") == message.length() - 4) {
+                String complete = message.substring(0, Math.max(message.length() - 5, 0)); // trims "\nEND\n" from the message
+                message.setLength(0);
+                return complete;
+            }
+        }
+
+        // the stream ended: a closed TLS socket keeps returning the end of the stream instead of failing, so it is reported here
+        message.setLength(0);
+        this.socket.close();
+        throw new EOFException("The connection was closed");
+    }
+
+    /**
+     * Puts back a message that was received too early, so the next receive returns it again.
+     * @param message message received
+     */
+    public void unreadMessage(String message) {
+        this.unread = message;
+    }
 
-        String line;
-        while ((line = reader.readLine()) != null) {
-            message.append(line).append("\n");
+    /**
+     * Receives a message from this Client's socket, waiting for it at most a given time.
+     * @param timeout maximum time to wait, in milliseconds
+     * @return message received, or null if it did not arrive in time; the part already received is kept for the next receive
+     * @throws IOException If this Client has disconnected
+     */
+    public String receiveMessage(long timeout) throws IOException {
+        int previous = this.socket.getSoTimeout();
+        this.socket.setSoTimeout((int) Math.max(timeout, 1));
+        try {
+            return this.receiveMessage();
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            if (!this.socket.isClosed()) {
+                this.socket.setSoTimeout(previous);
+            }
+        }
+    }
 
-            if (line.endsWith("END")) {
-                break;
+    /**
+     * Opens a new connection to the Server, performing the TLS handshake if the connection is secure.
+     * @return the connected socket
+     * @throws IOException If the connection could not be established
+     */
+    private Socket connect() throws IOException {
+        Socket socket = this.socketFactory.createSocket();
+        if (socket instanceof SSLSocket sslSocket) {
+            // the Server's certificate must not only be trusted, but also be issued for the host the Client connects to
+            SSLParameters parameters = sslSocket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslSocket.setSSLParameters(parameters);
+        }
+        socket.connect(this.address);
+        Tls.handshake(socket);
+        return socket;
+    }
+
+    /**
+     * Reconnects to the Server after the connection broke, sending the token to take the Client's place in the waiting queue back.
+     * @return true if this Client reconnected; false if every attempt failed
+     */
+    private boolean reconnect() {
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+                Socket socket = this.connect();
+
+                this.writeLock.lock();
+                try {
+                    this.setSocket(socket);
+                } finally {
+                    this.writeLock.unlock();
+                }
+
+                // the menu reads line by line, so both answers can be sent without waiting for the questions
+                this.sendMessage("REC\nEND");
+                this.sendMessage(this.token + "\nEND");
+                System.out.println("The connection was lost. Reconnected with the token \"" + this.token + "\".");
+                return true;
+            } catch (IOException e) {
+                System.out.println("Reconnection attempt " + attempt + " failed: " + e.getMessage() + ".");
+            } catch (InterruptedException e) {
+                return false;
             }
         }
 
-        if (!message.isEmpty()) {
-            message.setLength(message.length() - 5); // trims "\nEND\n" from the message
-        } else {
-            this.socket.close();
+        return false;
+    }
+
+    /**
+     * Keeps the token of the last message that gave one, while this Client is in the waiting queue.
+     * @param message message received
+     */
+    private void updateToken(String message) {
+        int start = message.indexOf(TOKEN_PREFIX);
+        if (start >= 0) {
+            start += TOKEN_PREFIX.length();
+            this.token = message.substring(start, message.indexOf('"', start));
+        } else if (message.startsWith("The game started.") || message.startsWith("Thank you for playing")) {
+            // the token only reconnects to the waiting queue, which this Client left
+            this.token = null;
+        }
+    }
+
+    /**
+     * Handles the Server's control messages, which are not shown to the player: answers pings with this Client's clock
+     * and keeps when the sentence of its turn was received, to stamp the inputs of the turn.
+     * @param message message received
+     * @return true if the message is a control message; false if otherwise
+     * @throws IOException If this Client has disconnected
+     */
+    private boolean handleControl(String message) throws IOException {
+        if (message.startsWith(ClockSync.PING)) {
+            this.sendMessage(ClockSync.PONG + message.substring(ClockSync.PING.length()) + " " + System.currentTimeMillis() + "\nEND");
+            return true;
         }
 
-        return message.toString();
+        if (message.startsWith("Write this sentence")) {
+            this.turnStart = System.currentTimeMillis();
+        } else if (message.startsWith("Your time is") || message.startsWith("The game started.")) {
+            this.turnStart = -1;
+        }
+        return false;
     }
 
     /**
      * Creates and runs a new virtual thread that waits in loop for messages to send, coming from the system input stream.
-     * Also waits in loop for messages received and prints them.
+     * During this Client's turn, each message is preceded by a stamp with the times this Client saw, so the Server times the typing alone.
+     * Also waits in loop for messages received and prints them, except control messages.
+     * If the connection breaks while this Client is in the waiting queue, it reconnects with its token.
      */
     public void waiting() {
         Thread.ofVirtual().start(() -> {
@@ -177,11 +537,15 @@ public class Client {
             while (!Thread.interrupted()) {
                 if (scanner.hasNextLine()) {
                     String message = scanner.nextLine() + "\nEND";
+                    long turnStart = this.turnStart;
                     try {
+                        if (turnStart >= 0) {
+                            this.sendMessage(ClockSync.STAMP + turnStart + " " + System.currentTimeMillis() + "\nEND");
+                        }
                         this.sendMessage(message);
                     } catch (IOException e) {
+                        // the input keeps being read, since the connection may be reestablished
                         System.out.println("Error writing to socket: " + e.getMessage() + ".");
-                        break;
                     }
                 }
             }
@@ -190,9 +554,16 @@ public class Client {
         while (true) {
             try {
                 String message = this.receiveMessage();
+                if (this.handleControl(message)) {
+                    continue;
+                }
+                this.updateToken(message);
                 System.out.println(message);
             } catch (IOException e) {
-                break;
+                this.turnStart = -1;
+                if (this.token == null || this.socketFactory == null || !this.reconnect()) {
+                    break;
+                }
             }
         }
     }
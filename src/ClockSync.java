@@ -0,0 +1,143 @@
+import java.io.IOException;
+
+public class ClockSync {
+    /**
+     * Prefix of the message the Server sends to measure the round-trip time, followed by a sequence number.
+     */
+    public static final String PING = "PING ";
+
+    /**
+     * Prefix of a Client's answer to a ping, followed by the ping's sequence number and the Client's clock, in milliseconds.
+     */
+    public static final String PONG = "PONG ";
+
+    /**
+     * Prefix of the message a Client sends before each input during its turn, followed by the Client's clock when it received
+     * the sentence and when the input was typed, in milliseconds.
+     */
+    public static final String STAMP = "STAMP ";
+
+    private static final int SAMPLES = 3; // pings sent at the start of each turn
+    private static final int PONG_TIMEOUT = 2000; // maximum time to wait for a pong, in milliseconds
+    private static final long SLACK = 20; // scheduling delay allowed on each side, beyond the measured round-trip times, in milliseconds
+    private static final long JITTER = 30; // variation allowed on top of the fastest round trip, since slower pongs may have been delayed on purpose, in milliseconds
+
+    private long minRoundTripTime = -1;
+    private long offset = 0; // the Client's clock minus the Server's clock
+
+    /**
+     * Measures the round-trip time to a Client and the offset of its clock by sending a few pings.
+     * A Client that does not answer, or answers with something other than a pong, is left unsynchronized. A Client that does
+     * not answer in time is not pinged again, so an old Client, which never answers, only delays its first turn.
+     * Any other message received instead of a pong is put back, to be received by the turn as an input.
+     * @param client the Client whose turn is starting
+     * @return the measurements, which may be unsynchronized
+     * @throws IOException If the Client disconnected
+     */
+    public static ClockSync synchronize(Client client) throws IOException {
+        ClockSync clock = new ClockSync();
+        if (!client.answersPings()) {
+            return clock;
+        }
+
+        try {
+            for (int sequence = 0; sequence < SAMPLES; sequence++) {
+                long sent = System.currentTimeMillis();
+                client.sendMessage(PING + sequence + "\nEND");
+                String pong = client.receiveMessage(PONG_TIMEOUT);
+                long received = System.currentTimeMillis();
+
+                if (pong == null) {
+                    // an old Client, which does not answer pings, keeps being timed by the Server alone
+                    client.setAnswersPings(false);
+                    break;
+                }
+                if (!pong.startsWith(PONG)) {
+                    client.unreadMessage(pong);
+                    break;
+                }
+
+                String[] fields = pong.split(" ");
+                if (fields.length != 3 || !fields[1].equals(String.valueOf(sequence))) {
+                    break;
+                }
+                clock.addSample(sent, Long.parseLong(fields[2]), received);
+            }
+        } catch (NumberFormatException e) {
+            // a malformed pong leaves the Client timed by the Server alone in this turn
+        }
+
+        return clock;
+    }
+
+    /**
+     * Adds a ping's measurements. The clock offset is taken from the fastest ping, whose error is the smallest.
+     * Slower pings are otherwise dropped, so a Client cannot widen the validation bounds by delaying some of its pongs.
+     * @param sent Server's clock when the ping was sent
+     * @param clientTime Client's clock when it answered
+     * @param received Server's clock when the pong was received
+     */
+    void addSample(long sent, long clientTime, long received) {
+        long roundTripTime = received - sent;
+        if (this.minRoundTripTime < 0 || roundTripTime < this.minRoundTripTime) {
+            this.minRoundTripTime = roundTripTime;
+            this.offset = clientTime - (sent + received) / 2;
+        }
+    }
+
+    /**
+     * @return true if at least one ping was answered; false if otherwise
+     */
+    public boolean isSynchronized() {
+        return this.minRoundTripTime >= 0;
+    }
+
+    /**
+     * @return the smallest round-trip time measured, in milliseconds, or -1 if unsynchronized
+     */
+    public long getRoundTripTime() {
+        return this.minRoundTripTime;
+    }
+
+    /**
+     * Validates the times stamped by the Client against the times seen by the Server.
+     * Converted to the Server's clock, the Client must have received the sentence between the moment it was sent and one
+     * round trip later, and typed its input at most one round trip before the Server received it. The round trip is the
+     * fastest one measured plus a small fixed jitter, never a slower sample.
+     * @param sending Server's clock before the sentence was sent
+     * @param sent Server's clock after the sentence was sent
+     * @param received Server's clock when the completing input was received
+     * @param clientStart Client's clock when it received the sentence, or a negative number if there is no stamp
+     * @param clientEnd Client's clock when it typed the completing input
+     * @return the time the Client took to type, in milliseconds, or -1 if there is no stamp or it is out of bounds
+     */
+    public long validate(long sending, long sent, long received, long clientStart, long clientEnd) {
+        if (!this.isSynchronized() || clientStart < 0 || clientEnd < clientStart) {
+            return -1;
+        }
+
+        // the offset is off by at most half the round trip it was measured with
+        long error = this.minRoundTripTime / 2 + SLACK;
+        long start = clientStart - this.offset;
+        long end = clientEnd - this.offset;
+        long roundTripTime = this.minRoundTripTime + JITTER;
+
+        if (start < sending - error || start > sent + roundTripTime + error) {
+            return -1;
+        }
+        if (end < received - roundTripTime - error || end > received + error) {
+            return -1;
+        }
+
+        return clientEnd - clientStart;
+    }
+
+    /**
+     * Removes the round-trip time from a time measured by the Server, when the Client did not stamp its times.
+     * @param elapsed time between sending the sentence and receiving the completing input, in milliseconds
+     * @return the time the Client took to type, in milliseconds
+     */
+    public long compensate(long elapsed) {
+        return this.isSynchronized() ? Math.max(elapsed - this.minRoundTripTime, 0) : elapsed;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Corpus {
+    private static final int[] BUCKET_LIMITS = {40, 80, 120}; // maximum length (in bytes) of the sentences of each bucket but the last
+    private static final int RANKING_PER_BUCKET = 25; // ranking points needed to move to the next (harder) bucket
+
+    private static final String[] DEFAULT_SENTENCES = {
+            "Actions speak louder than words.",
+            "When life gives you lemons, make lemonade.",
+            "Knowledge is power.",
+            "Time flies when you are having fun.",
+            "There is no place like home.",
+            "A journey of a thousand miles begins with a single step."
+    };
+
+    private final ByteBuffer data;
+    private final int[] offsets;
+    private final int[] bucketStarts;
+
+    /**
+     * Constructs a new Corpus object over a buffer with one sentence per line.
+     * Only the offset of each sentence is kept, grouped by difficulty bucket, so the sentences are decoded when selected.
+     * @param data buffer with the sentences
+     * @throws IOException If the buffer has no sentences
+     */
+    private Corpus(ByteBuffer data) throws IOException {
+        this.data = data;
+
+        // first pass: counts the sentences of each bucket
+        int[] counts = new int[BUCKET_LIMITS.length + 1];
+        for (int start = 0; start < data.limit(); start = this.nextLine(start)) {
+            int length = this.length(start);
+            if (length > 0) {
+                counts[Corpus.bucket(length)]++;
+            }
+        }
+
+        this.bucketStarts = new int[counts.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            this.bucketStarts[i + 1] = this.bucketStarts[i] + counts[i];
+        }
+
+        if (this.bucketStarts[counts.length] == 0) {
+            throw new IOException("The sentences file has no sentences");
+        }
+
+        // second pass: stores the offset of each sentence in the section of its bucket
+        this.offsets = new int[this.bucketStarts[counts.length]];
+        int[] next = this.bucketStarts.clone();
+        for (int start = 0; start < data.limit(); start = this.nextLine(start)) {
+            int length = this.length(start);
+            if (length > 0) {
+                this.offsets[next[Corpus.bucket(length)]++] = start;
+            }
+        }
+    }
+
+    /**
+     * Loads a Corpus from a file with one sentence per line, mapping the file in memory instead of reading it to the heap.
+     * @param filename name of the sentences file
+     * @return the loaded Corpus
+     * @throws IOException If an I/O error occurred, the file is larger than 2 GB or it has no sentences
+     */
+    public static Corpus load(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The sentences file is larger than 2 GB");
+            }
+
+            return new Corpus(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return a Corpus with the built-in sentences
+     */
+    public static Corpus defaults() {
+        try {
+            return new Corpus(ByteBuffer.wrap(String.join("\n", DEFAULT_SENTENCES).getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of sentences in this Corpus
+     */
+    public int size() {
+        return this.offsets.length;
+    }
+
+    /**
+     * Selects a sentence randomly from the bucket matching a team's ranking, so that better players write longer sentences.
+     * If that bucket is empty, the nearest non-empty bucket is used.
+     * @param averageRanking average ranking of the team
+     * @return the selected sentence
+     */
+    public String forRanking(int averageRanking) {
+        int buckets = this.bucketStarts.length - 1;
+        int bucket = Math.min(Math.max(averageRanking, 0) / RANKING_PER_BUCKET, buckets - 1);
+
+        for (int distance = 0; distance < buckets; distance++) {
+            // prefers the easier bucket when two buckets are at the same distance
+            if (this.hasSentences(bucket - distance)) {
+                bucket -= distance;
+                break;
+            }
+            if (this.hasSentences(bucket + distance)) {
+                bucket += distance;
+                break;
+            }
+        }
+
+        return this.get(ThreadLocalRandom.current().nextInt(this.bucketStarts[bucket], this.bucketStarts[bucket + 1]));
+    }
+
+    /**
+     * @param bucket difficulty bucket
+     * @return true if the bucket exists and has sentences; false if otherwise
+     */
+    private boolean hasSentences(int bucket) {
+        return bucket >= 0 && bucket < this.bucketStarts.length - 1 && this.bucketStarts[bucket + 1] > this.bucketStarts[bucket];
+    }
+
+    /**
+     * Decodes the sentence with a given index.
+     * @param index index of the sentence in the offsets
+     * @return the decoded sentence
+     */
+    private String get(int index) {
+        int start = this.offsets[index];
+        byte[] bytes = new byte[this.length(start)];
+        this.data.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param start offset where a line starts
+     * @return the length of the line, without the line terminator and trailing spaces
+     */
+    private int length(int start) {
+        int end = start;
+        while (end < this.data.limit() && this.data.get(end) != '\n') {
+            end++;
+        }
+
+        while (end > start && (this.data.get(end - 1) == '\r' || this.data.get(end - 1) == ' ')) {
+            end--;
+        }
+
+        return end - start;
+    }
+
+    /**
+     * @param start offset where a line starts
+     * @return the offset where the next line starts
+     */
+    private int nextLine(int start) {
+        int end = start;
+        while (end < this.data.limit() && this.data.get(end) != '\n') {
+            end++;
+        }
+
+        return end + 1;
+    }
+
+    /**
+     * @param length length of a sentence in bytes
+     * @return the difficulty bucket of the sentence
+     */
+    private static int bucket(int length) {
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS.length && length > BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+
+        return bucket;
+    }
+}
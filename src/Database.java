@@ -1,41 +1,345 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 public class Database {
+    /**
+     * Three ways of keeping the players: all in memory as objects, all in memory in primitive columns, both saved to a CSV file,
+     * or in an on-disk store with a bounded cache of the active ones.
+     */
+    enum StorageMode {
+        MEMORY,
+        COLUMNAR,
+        DISK
+    }
+
+    /**
+     * Receives the fields of each line parsed from a chunk of the database file.
+     */
+    private interface LineParser {
+        /**
+         * @param line bytes of the line
+         * @param firstComma index of the comma after the username
+         * @param secondComma index of the comma after the password
+         * @param ranking parsed ranking
+         */
+        void parsed(byte[] line, int firstComma, int secondComma, int ranking);
+    }
+
+    private static final int DEFAULT_CACHE_SIZE = 100000; // unpinned players kept in memory in disk mode, unless typeracer.cache is set
+    private static final long MIN_CHUNK_SIZE = 1 << 20; // smaller files are not worth splitting, in bytes
+    private static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE; // largest region that can be mapped at once, in bytes
+
+    private final StorageMode storageMode;
     private final File file;
     private final ArrayList<Player> players;
+    private final ConcurrentHashMap<String, Player> index;
+    private final PlayerStore store;
+    private final PlayerTable table;
 
     /**
      * Constructs a new Database object stored in a given file. If the file does not exist, this constructor creates it.
+     * A *.db file is an on-disk store, of which only the active players and a bounded cache are kept in memory.
+     * Any other file is a CSV file, which is split into chunks on line boundaries, mapped in memory and parsed in parallel,
+     * into Player objects or, if the typeracer.storage property is "columnar", into a PlayerTable.
      * @param filename new Database file
      * @throws IOException If an I/O error occurred
      */
     public Database(String filename) throws IOException {
         this.file = new File(filename);
-        this.players = new ArrayList<>();
+        this.index = new ConcurrentHashMap<>();
+
+        if (filename.endsWith(".db")) {
+            this.storageMode = StorageMode.DISK;
+            this.players = new ArrayList<>();
+            this.table = null;
+            this.store = new PlayerStore(filename, Integer.getInteger("typeracer.cache", DEFAULT_CACHE_SIZE));
+
+            File csv = new File(filename.substring(0, filename.length() - ".db".length()) + ".csv");
+            if (this.store.size() == 0 && csv.exists()) {
+                this.importCsv(csv);
+            }
+            return;
+        }
+
+        this.storageMode = "columnar".equals(System.getProperty("typeracer.storage")) ? StorageMode.COLUMNAR : StorageMode.MEMORY;
+        this.store = null;
 
         if (this.file.createNewFile()) {
             System.out.println("The provided file did not exist, so it will be created.");
         }
 
-        BufferedReader bufferedReader = new BufferedReader(new FileReader(this.file));
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            long[] boundaries = Database.split(channel);
 
-        String line = bufferedReader.readLine();
-        while (line != null) {
-            // reads the database file, line by line
-            String[] array = line.split(",");
-            String username = array[0];
-            String password = array[1];
-            int ranking = Integer.parseInt(array[2]);
+            if (this.storageMode == StorageMode.COLUMNAR) {
+                // each chunk is parsed in parallel into its own table, and the tables are merged and indexed at the end
+                List<PlayerTable> chunks;
+                try {
+                    chunks = IntStream.range(0, boundaries.length - 1).parallel()
+                            .mapToObj((i) -> {
+                                PlayerTable chunk = new PlayerTable();
+                                Database.parse(channel, boundaries[i], boundaries[i + 1],
+                                        (line, firstComma, secondComma, ranking) -> chunk.load(line, firstComma, firstComma + 1, secondComma, ranking));
+                                return chunk;
+                            })
+                            .toList();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
 
-            Player player = new Player(username, password, ranking);
-            this.players.add(player);
+                this.players = new ArrayList<>();
+                this.table = PlayerTable.merge(chunks);
+                return;
+            }
+
+            this.table = null;
+
+            // each chunk is parsed in parallel and its players are indexed as soon as they are parsed
+            List<ArrayList<Player>> chunks;
+            try {
+                chunks = IntStream.range(0, boundaries.length - 1).parallel()
+                        .mapToObj((i) -> {
+                            ArrayList<Player> chunk = new ArrayList<>();
+                            Database.parse(channel, boundaries[i], boundaries[i + 1], (line, firstComma, secondComma, ranking) -> {
+                                String username = new String(line, 0, firstComma, StandardCharsets.UTF_8);
+                                String password = new String(line, firstComma + 1, secondComma - firstComma - 1, StandardCharsets.ISO_8859_1);
+                                Player player = new Player(username, password, ranking);
+                                chunk.add(player);
+                                this.index.put(username, player);
+                            });
+                            return chunk;
+                        })
+                        .toList();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            this.players = new ArrayList<>(chunks.stream().mapToInt(ArrayList::size).sum());
+            for (ArrayList<Player> chunk : chunks) {
+                this.players.addAll(chunk);
+            }
+        }
+    }
+
+    /**
+     * Imports the players of a CSV database into the on-disk store, one line at a time, so the CSV file can be larger than the heap.
+     * A malformed line is reported and skipped, so it neither stops the import nor reaches the store.
+     * @param csv CSV database file
+     * @throws IOException If an I/O error occurred
+     */
+    private void importCsv(File csv) throws IOException {
+        System.out.println("Importing the players of " + csv + " into " + this.file + ".");
+
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(csv))) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                int firstComma = line.indexOf(',');
+                int secondComma = line.indexOf(',', firstComma + 1);
+                if (firstComma < 0 || secondComma < 0) {
+                    System.out.println("The line \"" + line + "\" was not imported, because it is malformed.");
+                    continue;
+                }
+
+                String username = line.substring(0, firstComma);
+                if (username.getBytes(StandardCharsets.UTF_8).length > PlayerStore.USERNAME_CAPACITY) {
+                    System.out.println("The player " + username + " was not imported, because the username is too long.");
+                    continue;
+                }
+
+                String password = line.substring(firstComma + 1, secondComma);
+                int ranking;
+                try {
+                    ranking = Integer.parseInt(line.substring(secondComma + 1).trim());
+                    if (Base64.getDecoder().decode(password).length != PlayerStore.HASH_SIZE) {
+                        System.out.println("The player " + username + " was not imported, because the password hash does not have " + PlayerStore.HASH_SIZE + " bytes.");
+                        continue;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // also thrown by parseInt, as a NumberFormatException
+                    System.out.println("The player " + username + " was not imported, because the line is malformed.");
+                    continue;
+                }
+
+                this.store.insert(username, password, ranking);
+            }
+        }
+
+        this.store.flush();
+    }
+
+    /**
+     * Splits the database file into chunks, moving each boundary to the start of the next line.
+     * @param channel the database file's channel
+     * @return the offsets where each chunk starts, followed by the size of the file
+     * @throws IOException If an I/O error occurred
+     */
+    private static long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long chunks = Math.max(1, Math.min(size / MIN_CHUNK_SIZE, 4L * Runtime.getRuntime().availableProcessors()));
+        chunks = Math.max(chunks, size / MAX_CHUNK_SIZE + 1);
+
+        long[] boundaries = new long[(int) chunks + 1];
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (int i = 1; i < chunks; i++) {
+            long position = Math.max(size * i / chunks, boundaries[i - 1]);
+
+            // moves the boundary forward until it is right after a line break
+            boolean found = false;
+            while (!found && position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int j = 0; j < read && !found; j++) {
+                    position++;
+                    found = buffer.get(j) == '\n';
+                }
+            }
+
+            boundaries[i] = position;
+        }
+        boundaries[(int) chunks] = size;
+
+        return boundaries;
+    }
+
+    /**
+     * Parses the lines of a chunk of the database file without regular expressions, in the order they appear.
+     * @param channel the database file's channel
+     * @param start offset where the chunk starts
+     * @param end offset where the chunk ends
+     * @param parser receives the fields of each line
+     */
+    private static void parse(FileChannel channel, long start, long end, LineParser parser) {
+        if (start >= end) {
+            return;
+        }
+
+        ByteBuffer chunk;
+        try {
+            chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] line = new byte[256];
+        int position = 0;
+        while (position < chunk.limit()) {
+            int lineEnd = position;
+            while (lineEnd < chunk.limit() && chunk.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+
+            int length = lineEnd - position;
+            if (length > 0 && chunk.get(lineEnd - 1) == '\r') {
+                length--;
+            }
+
+            if (length > 0) {
+                if (length > line.length) {
+                    line = new byte[Math.max(length, 2 * line.length)];
+                }
+                chunk.get(position, line, 0, length);
+
+                // username,password,ranking
+                int firstComma = Database.indexOf(line, (byte) ',', 0, length);
+                int secondComma = Database.indexOf(line, (byte) ',', firstComma + 1, length);
+                parser.parsed(line, firstComma, secondComma, Database.parseInt(line, secondComma + 1, length));
+            }
 
-            line = bufferedReader.readLine();
+            position = lineEnd + 1;
         }
+    }
+
+    /**
+     * @param bytes bytes to search
+     * @param value byte to find
+     * @param from first index to search
+     * @param to index after the last to search
+     * @return the index of the first occurrence of the value
+     * @throws IllegalArgumentException If the value does not occur, meaning the line is malformed
+     */
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Malformed database line: " + new String(bytes, 0, to, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param bytes bytes with the digits of an integer, optionally preceded by a minus sign
+     * @param from index of the first character
+     * @param to index after the last character
+     * @return the parsed integer
+     */
+    private static int parseInt(byte[] bytes, int from, int to) {
+        boolean negative = from < to && bytes[from] == '-';
+        int value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                throw new NumberFormatException("Malformed database ranking: " + new String(bytes, from, to - from, StandardCharsets.UTF_8));
+            }
+            value = value * 10 + (bytes[i] - '0');
+        }
+
+        return negative ? -value : value;
+    }
 
-        bufferedReader.close();
+    /**
+     * Gets the Player with a given username, without checking any password.
+     * @param username username to find in this database
+     * @return the corresponding Player if the username exists in this database; null otherwise
+     * @throws IOException If an error occurs when reading this database's file
+     */
+    public Player getPlayer(String username) throws IOException {
+        if (this.storageMode == StorageMode.DISK) {
+            return this.store.get(username);
+        } else if (this.storageMode == StorageMode.COLUMNAR) {
+            return this.table.get(username);
+        }
+
+        return this.index.get(username);
+    }
+
+    /**
+     * Pins a Player while it is in the waiting queue or in a game, so it is never evicted from memory in disk mode
+     * and its handle is kept in columnar mode.
+     * @param player Player to pin
+     */
+    public void pin(Player player) {
+        if (this.storageMode == StorageMode.DISK) {
+            this.store.pin(player);
+        } else if (this.storageMode == StorageMode.COLUMNAR) {
+            this.table.pin(player);
+        }
+    }
+
+    /**
+     * Unpins a Player that left the waiting queue and is not playing.
+     * @param player Player to unpin
+     */
+    public void unpin(Player player) {
+        if (this.storageMode == StorageMode.DISK) {
+            this.store.unpin(player);
+        } else if (this.storageMode == StorageMode.COLUMNAR) {
+            this.table.unpin(player);
+        }
     }
 
     /**
@@ -44,13 +348,13 @@ public class Database {
      * @param username username to find in this database
      * @param password password to check
      * @return the corresponding Player if the username exists in this database and the password is correct; null otherwise
+     * @throws IOException If an error occurs when reading this database's file
      * @throws NoSuchAlgorithmException If the encryption algorithm requested is not available in the environment
      */
-    public Player login(String username, String password) throws NoSuchAlgorithmException {
-        for (Player player : this.players) {
-            if (player.getUsername().equals(username) && player.verifyPassword(password)) {
-                return player;
-            }
+    public Player login(String username, String password) throws IOException, NoSuchAlgorithmException {
+        Player player = this.getPlayer(username);
+        if (player != null && player.verifyPassword(password)) {
+            return player;
         }
 
         return null;
@@ -66,13 +370,23 @@ public class Database {
      * @throws NoSuchAlgorithmException If the encryption algorithm requested is not available in the environment
      */
     public Player register(String username, String password) throws IOException, NoSuchAlgorithmException {
-        if (this.players.stream().anyMatch(player -> player.getUsername().equals(username))) {
-            // the username already exists in the database
-            return null;
-        }
+        Player player;
+        if (this.storageMode == StorageMode.DISK) {
+            return this.store.insert(username, Player.hashPassword(password), 0);
+        } else if (this.storageMode == StorageMode.COLUMNAR) {
+            player = this.table.insert(username, Player.hashPassword(password), 0);
+            if (player == null) {
+                return null;
+            }
+        } else {
+            player = new Player(username, Player.hashPassword(password), 0);
+            if (this.index.putIfAbsent(username, player) != null) {
+                // the username already exists in the database
+                return null;
+            }
 
-        Player player = new Player(username, Player.hashPassword(password), 0);
-        this.players.add(player);
+            this.players.add(player);
+        }
 
         // writes the registered Player to the database file
         FileWriter fileWriter = new FileWriter(this.file, true);
@@ -82,18 +396,138 @@ public class Database {
         return player;
     }
 
+    /**
+     * Passes the ranking of every Player in this database to a consumer.
+     * @param consumer consumer of the rankings
+     * @throws IOException If an error occurs when reading this database's file
+     */
+    public void forEachRanking(IntConsumer consumer) throws IOException {
+        if (this.storageMode == StorageMode.DISK) {
+            this.store.forEachRanking(consumer);
+        } else if (this.storageMode == StorageMode.COLUMNAR) {
+            this.table.forEachRanking(consumer);
+        } else {
+            this.index.values().forEach((player) -> consumer.accept(player.getRanking()));
+        }
+    }
+
     /**
      * Saves this database in its file.
-     * Writes all players in the database to the file.
+     * Writes all players in the database to the file or, in disk mode, only the rankings of the players that changed.
+     * @param dirty players whose rankings changed since the last save
      * @throws IOException If an error occurs when writing to this database's file
      */
-    public void save() throws IOException {
-        BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(this.file));
+    public void save(Collection<Player> dirty) throws IOException {
+        Events.DatabaseSave event = new Events.DatabaseSave();
+        event.begin();
+        event.storageMode = this.storageMode.name();
 
-        for (Player player : this.players) {
-            bufferedWriter.write(player.toString());
+        try {
+            if (this.storageMode == StorageMode.DISK) {
+                this.store.flush(dirty);
+                return;
+            } else if (this.storageMode == StorageMode.COLUMNAR) {
+                try (OutputStream output = new BufferedOutputStream(new FileOutputStream(this.file))) {
+                    this.table.write(output);
+                }
+                return;
+            }
+
+            BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(this.file));
+
+            for (Player player : this.players) {
+                bufferedWriter.write(player.toString());
+            }
+
+            bufferedWriter.close();
+        } finally {
+            event.commit();
+        }
+    }
+
+    /**
+     * Replaces the part of the rankings of the players of a database file that they earned in the recorded games, keeping the points
+     * earned before the games were recorded and the players not given as they are. The new ranking of each player is its stored ranking
+     * plus the difference between its recomputed and its earned points. If a stored ranking is lower than the points earned in the
+     * recorded games, the history does not match the database, so nothing is replaced.
+     * The new database is written to a temporary file, which then replaces the database file atomically, so the database
+     * always has either every old or every new ranking. Must not be used while a Server is using the database.
+     * @param filename database file, either a CSV file or a *.db store
+     * @param earned points earned by each player in the recorded games, by username
+     * @param recomputed recomputed points of each player in the recorded games, by username
+     * @return the number of players whose ranking was replaced
+     * @throws IOException If an I/O error occurred or the history does not match the database
+     */
+    public static int replaceRankings(String filename, Map<String, Integer> earned, Map<String, Integer> recomputed) throws IOException {
+        Path path = Path.of(filename);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        int replaced = 0;
+
+        try {
+            if (filename.endsWith(".db")) {
+                Files.copy(path, temporary, StandardCopyOption.REPLACE_EXISTING);
+                PlayerStore store = new PlayerStore(temporary.toString(), DEFAULT_CACHE_SIZE);
+                try {
+                    for (Map.Entry<String, Integer> entry : recomputed.entrySet()) {
+                        Player player = store.get(entry.getKey());
+                        if (player != null) {
+                            // evicted players have their changed ranking written back, so the copy is updated without loading it whole
+                            player.incrementRanking(Database.replacedRanking(player.getUsername(), player.getRanking(), earned, recomputed) - player.getRanking());
+                            replaced++;
+                        }
+                    }
+                } finally {
+                    store.close();
+                }
+            } else {
+                // the CSV file is streamed line by line, so it does not have to fit in memory
+                try (BufferedReader bufferedReader = new BufferedReader(new FileReader(filename));
+                     BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(temporary.toFile()))) {
+                    String line;
+                    while ((line = bufferedReader.readLine()) != null) {
+                        int firstComma = line.indexOf(',');
+                        int secondComma = line.indexOf(',', firstComma + 1);
+                        String username = firstComma < 0 || secondComma < 0 ? null : line.substring(0, firstComma);
+                        if (username != null && recomputed.containsKey(username)) {
+                            int ranking;
+                            try {
+                                ranking = Integer.parseInt(line.substring(secondComma + 1).trim());
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Malformed database line: " + line);
+                            }
+                            line = line.substring(0, secondComma + 1) + Database.replacedRanking(username, ranking, earned, recomputed);
+                            replaced++;
+                        }
+                        bufferedWriter.write(line);
+                        bufferedWriter.write('\n');
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the database file was not changed, so the partial copy is discarded
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return replaced;
+    }
+
+    /**
+     * @param username the player's username
+     * @param ranking the player's stored ranking
+     * @param earned points earned by each player in the recorded games, by username
+     * @param recomputed recomputed points of each player in the recorded games, by username
+     * @return the stored ranking with the earned points replaced by the recomputed ones
+     * @throws IOException If the stored ranking is lower than the earned points, so the history does not match the database
+     */
+    private static int replacedRanking(String username, int ranking, Map<String, Integer> earned, Map<String, Integer> recomputed) throws IOException {
+        int before = ranking - earned.getOrDefault(username, 0);
+        if (before < 0) {
+            throw new IOException("The ranking of " + username + " (" + ranking + ") is lower than its points in the game history ("
+                    + earned.get(username) + "), so the history does not match the database and no ranking was replaced");
         }
 
-        bufferedWriter.close();
+        return before + recomputed.get(username);
     }
 }
@@ -0,0 +1,255 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+public class Events {
+    // Java Flight Recorder events along a client's lifecycle; when no recording is running, begin and commit do nothing
+
+    /**
+     * A client's session in the menu, from its arrival until it enters the waiting queue, reconnects or disconnects.
+     */
+    @Name("typeracer.ClientSession")
+    @Label("Client Session")
+    @Category({"TypeRacer", "Clients"})
+    public static class ClientSession extends Event {
+        @Label("Username")
+        public String username;
+
+        @Label("Outcome")
+        @Description("queued, reconnected or disconnected")
+        public String outcome;
+    }
+
+    /**
+     * A login or a registration, including the wait for the database.
+     */
+    @Name("typeracer.Authentication")
+    @Label("Authentication")
+    @Category({"TypeRacer", "Clients"})
+    public static class Authentication extends Event {
+        @Label("Username")
+        public String username;
+
+        @Label("Login")
+        @Description("true for a login, false for a registration")
+        public boolean login;
+
+        @Label("Successful")
+        public boolean successful;
+    }
+
+    /**
+     * A reconnection with a token, to the waiting queue or to a checkpoint taken before a restart.
+     */
+    @Name("typeracer.Reconnect")
+    @Label("Reconnect")
+    @Category({"TypeRacer", "Clients"})
+    public static class Reconnect extends Event {
+        @Label("Username")
+        public String username;
+
+        @Label("Successful")
+        public boolean successful;
+    }
+
+    /**
+     * A client entering the waiting queue after it authenticated.
+     */
+    @Name("typeracer.WaitingQueue")
+    @Label("Enter Waiting Queue")
+    @Category({"TypeRacer", "Matchmaking"})
+    public static class WaitingQueue extends Event {
+        @Label("Username")
+        public String username;
+
+        @Label("Ranking")
+        public int ranking;
+
+        @Label("Clients Waiting")
+        @Description("Clients in the shard after this one entered it")
+        public int waiting;
+    }
+
+    /**
+     * A matchmaking pass over a shard of the waiting queue, or over the edges between shards.
+     */
+    @Name("typeracer.MatchmakingPass")
+    @Label("Matchmaking Pass")
+    @Category({"TypeRacer", "Matchmaking"})
+    public static class MatchmakingPass extends Event {
+        @Label("Kind")
+        @Description("simple, rank or overflow")
+        public String kind;
+
+        @Label("Lowest Ranking")
+        public int minRanking;
+
+        @Label("Highest Ranking")
+        public int maxRanking;
+
+        @Label("Clients Waiting")
+        @Description("Clients in the shard before the pass")
+        public int waiting;
+
+        @Label("Teams Formed")
+        public int teams;
+    }
+
+    /**
+     * A decision of a shard's ranking difference controller, with the measurements it was based on.
+     */
+    @Name("typeracer.ToleranceDecision")
+    @Label("Tolerance Decision")
+    @Category({"TypeRacer", "Matchmaking"})
+    public static class ToleranceDecision extends Event {
+        @Label("Min Ranking")
+        public int minRanking;
+
+        @Label("Max Ranking")
+        public int maxRanking;
+
+        @Label("Clients Waiting")
+        public int waiting;
+
+        @Label("Arrival Rate")
+        @Description("Arrivals per minute at the shard, as a moving average")
+        public double arrivalRate;
+
+        @Label("Oldest Wait")
+        @Timespan(Timespan.MILLISECONDS)
+        public long oldestWait;
+
+        @Label("Target Wait")
+        @Timespan(Timespan.MILLISECONDS)
+        public long targetWait;
+
+        @Label("Expected Players")
+        @Description("Other players expected within the ranking difference of the oldest client by the target wait")
+        public double expectedPlayers;
+
+        @Label("Ranking Difference")
+        public int rankingDifference;
+    }
+
+    /**
+     * A phase of a game: start, type racer, results or play again.
+     */
+    @Name("typeracer.GamePhase")
+    @Label("Game Phase")
+    @Category({"TypeRacer", "Games"})
+    public static class GamePhase extends Event {
+        @Label("Phase")
+        public String phase;
+
+        @Label("Team")
+        public String team;
+    }
+
+    /**
+     * A player's turn in a game, from the clock synchronization until the player writes the goal or disconnects.
+     */
+    @Name("typeracer.GameTurn")
+    @Label("Game Turn")
+    @Category({"TypeRacer", "Games"})
+    public static class GameTurn extends Event {
+        @Label("Username")
+        public String username;
+
+        @Label("Ranking")
+        public int ranking;
+
+        @Label("Goal Length")
+        public int goalLength;
+
+        @Label("Completed")
+        public boolean completed;
+
+        @Label("Round-Trip Time")
+        @Timespan(Timespan.MILLISECONDS)
+        public long roundTripTime;
+
+        @Label("Client Stamped")
+        public boolean clientStamped;
+    }
+
+    /**
+     * A client watching a game, from choosing it until the game ends or the client disconnects.
+     */
+    @Name("typeracer.Spectate")
+    @Label("Spectate")
+    @Category({"TypeRacer", "Games"})
+    public static class Spectate extends Event {
+        @Label("Team")
+        public String team;
+
+        @Label("Events Sent")
+        public long events;
+
+        @Label("Events Skipped")
+        public long skipped;
+    }
+
+    /**
+     * The database being saved after a game.
+     */
+    @Name("typeracer.DatabaseSave")
+    @Label("Database Save")
+    @Category({"TypeRacer", "Persistence"})
+    public static class DatabaseSave extends Event {
+        @Label("Storage Mode")
+        public String storageMode;
+    }
+
+    /**
+     * A TLS handshake, performed in the new client's own thread.
+     */
+    @Name("typeracer.TlsHandshake")
+    @Label("TLS Handshake")
+    @Category({"TypeRacer", "Clients"})
+    public static class TlsHandshake extends Event {
+        @Label("Protocol")
+        public String protocol;
+
+        @Label("Cipher Suite")
+        public String cipherSuite;
+
+        @Label("Resumed")
+        @Description("true if the client resumed a previous session with an abbreviated handshake")
+        public boolean resumed;
+    }
+
+    /**
+     * A thread waiting for a lock held by another thread.
+     */
+    @Name("typeracer.LockContention")
+    @Label("Lock Contention")
+    @Category({"TypeRacer", "Locks"})
+    @Threshold("1 ms")
+    public static class LockContention extends Event {
+        @Label("Lock")
+        public String lock;
+    }
+
+    /**
+     * Acquires a lock, recording a contention event only when the lock is held by another thread, so the uncontended path is a single tryLock.
+     * @param lock lock to acquire
+     * @param name name of the lock in the event
+     */
+    public static void lock(ReentrantLock lock, String name) {
+        if (lock.tryLock()) {
+            return;
+        }
+
+        LockContention event = new LockContention();
+        event.begin();
+        lock.lock();
+        event.lock = name;
+        event.commit();
+    }
+}
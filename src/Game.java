@@ -1,29 +1,84 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Clock;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.stream.Collectors;
 
 public class Game {
     private final ArrayList<Client> clients;
 
-    private final ArrayList<String> goals = new ArrayList<>(Arrays.asList(
-            "Actions speak louder than words.",
-            "When life gives you lemons, make lemonade.",
-            "Knowledge is power.",
-            "Time flies when you are having fun.",
-            "There is no place like home.",
-            "A journey of a thousand miles begins with a single step."
-    ));
+    private final Corpus corpus;
+    private final GameHistory history;
+    private final Clock clock;
+    private final String team;
+    private final int averageRanking;
+    private final GameStream stream;
+    private String goal;
+    private int[] increments;
+
+    private static final long PROGRESS_INTERVAL = 250; // minimum time between progress updates, in milliseconds
 
     float bestTime = Float.MAX_VALUE;
     Client winner = null;
+    private long lastProgressTime = 0;
+    private boolean progressPending = false; // true if the last progress was not sent yet because of the rate limit
+
+    // the Client's clock when it received the sentence and when it typed its last input, or -1 if it did not stamp them
+    private long stampStart = -1;
+    private long stampEnd = -1;
 
     /**
      * Creates a new Game object with the given clients (players).
      * @param clients new Game clients (who will play this game)
+     * @param corpus sentences from which the goal is selected
+     * @param history store where this game is recorded when it ends, or null to not record it
+     * @param clock the Server's clock, which times when this game is recorded
      */
-    public Game(ArrayList<Client> clients) {
+    public Game(ArrayList<Client> clients, Corpus corpus, GameHistory history, Clock clock) {
         this.clients = clients;
+        this.corpus = corpus;
+        this.history = history;
+        this.clock = clock;
+
+        // the usernames of the team, to show to every player and to the spectators
+        this.team = clients.stream().map(Client::getPlayer).map(Player::getUsername).collect(Collectors.joining(", "));
+        this.averageRanking = (int) clients.stream().mapToInt(c -> c.getPlayer().getRanking()).average().orElse(0);
+        this.stream = new GameStream();
+    }
+
+    /**
+     * @return the clients who play this game
+     */
+    public ArrayList<Client> getClients() {
+        return this.clients;
+    }
+
+    /**
+     * @return the usernames of the team who plays this game
+     */
+    public String getTeam() {
+        return this.team;
+    }
+
+    /**
+     * @return the average ranking of the team when this game started
+     */
+    public int getAverageRanking() {
+        return this.averageRanking;
+    }
+
+    /**
+     * @return the stream of this game's events, followed by its spectators
+     */
+    public GameStream getStream() {
+        return this.stream;
+    }
+
+    /**
+     * @return the ranking increment of each client, in the order of getClients, once the results were shown
+     */
+    public int[] getIncrements() {
+        return this.increments;
     }
 
     /**
@@ -34,63 +89,104 @@ public class Game {
     public ArrayList<Client> play() {
         System.out.println("Starting game with " + this.clients.size() + " players.");
 
-        this.start();
-        this.typeRacer();
-        this.showResults();
+        try {
+            Events.GamePhase event = this.beginPhase("start", this.team);
+            this.start(this.team);
+            event.commit();
+
+            event = this.beginPhase("typeRacer", this.team);
+            this.typeRacer();
+            event.commit();
+
+            event = this.beginPhase("showResults", this.team);
+            this.showResults();
+            event.commit();
+        } finally {
+            // the spectators stop following this game once they see the results
+            this.stream.close();
+        }
+
+        Events.GamePhase event = this.beginPhase("playAgain", this.team);
         ArrayList<Client> newClients = this.playAgain();
+        event.commit();
 
         System.out.println("Finished game.");
 
         return newClients;
     }
 
+    /**
+     * Begins the event of a phase of this game.
+     * @param phase name of the phase
+     * @param team usernames of the team
+     * @return the event, to commit when the phase ends
+     */
+    private Events.GamePhase beginPhase(String phase, String team) {
+        Events.GamePhase event = new Events.GamePhase();
+        event.phase = phase;
+        event.team = team;
+        event.begin();
+        return event;
+    }
+
     /**
      * Starts this game.
-     * Notifies each client about the team who will play this game.
+     * Notifies each client and the spectators about the team who will play this game.
+     * @param team usernames of the team
      */
-    private void start() {
-        // creates a String with the team that will play this game, to show to every player
-        String team = clients.stream().map(Client::getPlayer).map(Player::getUsername).collect(Collectors.joining(", "));
-        for (Client client : clients) {
-            try {
-                client.sendMessage("The game started. The team for this game is: " + team + ".\nEND");
-            } catch (IOException e) {
-                System.out.println("Client " + client.getPlayer().getUsername() + " was disconnected after entering the game.");
-            }
-        }
+    private void start(String team) {
+        this.stream.publish(Client.broadcast(this.clients, "The game started. The team for this game is: " + team + ".\nEND"));
     }
 
     /**
-     * Selects the goal randomly and lets each client try to write the phrase in the less time possible.
+     * Selects the goal randomly, with a difficulty matching the team's average ranking, and lets each client try to write the phrase in the less time possible.
      * In the end of each turn, notifies each client about the time it took to write the phrase correctly.
      * Calculates the winner of this game (the client who wrote the phrase in the less time possible) and sets it.
      */
     private void typeRacer() {
-        // selects the goal randomly
-        int goalNumber = (int) (Math.random() * this.goals.size());
-        String goal = this.goals.get(goalNumber);
+        // selects the goal randomly, from the sentences whose difficulty matches the team's average ranking
+        String goal = this.corpus.forRanking(this.averageRanking);
+        this.goal = goal;
 
         for (Client client : this.clients) {
+            Events.GameTurn event = new Events.GameTurn();
+            event.begin();
+            event.username = client.getPlayer().getUsername();
+            event.ranking = client.getPlayer().getRanking();
+            event.goalLength = goal.length();
+
             try {
+                ClockSync clock = ClockSync.synchronize(client);
+                event.roundTripTime = clock.getRoundTripTime();
+
+                long sending = System.currentTimeMillis();
+
                 client.sendMessage("Write this sentence in the less time possible:\n\"" + goal + "\"\nEND");
+                this.stream.publish(Client.encode(client.getPlayer().getUsername() + " is writing the sentence:\n\"" + goal + "\"\nEND"));
 
                 long start = System.currentTimeMillis();
 
-                String play = client.receiveMessage();
-
-                while (!play.equals(goal)) {
-                    client.sendMessage("Input does not match with goal. Try again!\nEND");
-                    play = client.receiveMessage();
-                }
+                this.waitForGoal(client, goal);
 
                 long end = System.currentTimeMillis();
 
-                // measures how much time the player took to write the sentence correctly
-                float duration = (float) (end - start) / 1000;
+                // measures how much time the player took to write the sentence correctly, as stamped by the client,
+                // so the network and the Server's own delays do not count against the player
+                long elapsed = clock.validate(sending, start, end, this.stampStart, this.stampEnd);
+                event.clientStamped = elapsed >= 0;
+                if (elapsed < 0) {
+                    if (clock.isSynchronized() && this.stampStart >= 0) {
+                        System.out.println("Client " + client.getPlayer().getUsername() + " stamped times outside the measured round-trip bounds.");
+                    }
+                    elapsed = clock.compensate(end - start);
+                }
+                float duration = (float) elapsed / 1000;
 
                 client.getPlayer().setPlayTime(duration);
 
                 client.sendMessage("Your time is " + duration + " seconds.\nEND");
+                this.stream.publish(Client.encode(client.getPlayer().getUsername() + " wrote the sentence in " + duration + " seconds.\nEND"));
+                event.completed = true;
 
                 if (duration < this.bestTime) {
                     // the winner is the fastest client to write the sentence
@@ -100,24 +196,133 @@ public class Game {
             } catch (IOException e) {
                 client.getPlayer().setPlayTime(Float.MAX_VALUE);
                 System.out.println("Client " + client.getPlayer().getUsername() + " was disconnected when it was its turn to play.");
+                this.stream.publish(Client.encode(client.getPlayer().getUsername() + " was disconnected.\nEND"));
             }
+
+            event.commit();
         }
     }
 
     /**
-     * Sorts the clients by ascending play time and updates each player's ranking.
-     * Then, displays this game results for each client, distinguishing between who won and who lost.
+     * Receives the client's input until it matches the goal.
+     * The client can either send whole attempts, retyping the sentence after each mismatch, or stream keystroke deltas
+     * ("+CHARACTERS" to type, "-COUNT" to delete), which are checked incrementally and reported to the other players.
+     * Each input may be preceded by a stamp with the client's own times, which is kept to time the turn. Late pongs are ignored.
+     * @param client the client whose turn it is
+     * @param goal the sentence to write
+     * @throws IOException If the client disconnected while playing
+     */
+    private void waitForGoal(Client client, String goal) throws IOException {
+        TypingProgress progress = new TypingProgress(goal);
+        ArrayList<Client> others = new ArrayList<>(this.clients);
+        others.remove(client);
+        this.lastProgressTime = 0;
+        this.progressPending = false;
+        this.stampStart = -1;
+        this.stampEnd = -1;
+
+        while (true) {
+            String play;
+            if (this.progressPending) {
+                // the progress held back by the rate limit is sent once the interval passes, even if the player pauses
+                play = client.receiveMessage(this.lastProgressTime + PROGRESS_INTERVAL - System.currentTimeMillis());
+                if (play == null) {
+                    this.sendProgress(client, others, progress, true);
+                    continue;
+                }
+            } else {
+                play = client.receiveMessage();
+            }
+
+            if (play.startsWith(ClockSync.STAMP)) {
+                this.stamp(play);
+                continue;
+            }
+
+            if (play.startsWith(ClockSync.PONG)) {
+                // a pong that arrived after the synchronization timed out is not an input
+                continue;
+            }
+
+            if (progress.getTyped() == 0 && play.equals(goal)) {
+                return;
+            }
+
+            if (!TypingProgress.isDelta(play)) {
+                client.sendMessage("Input does not match with goal. Try again!\nEND");
+                continue;
+            }
+
+            boolean hadMistake = progress.hasMistake();
+            progress.apply(play);
+
+            if (progress.isComplete()) {
+                this.sendProgress(client, others, progress, true);
+                return;
+            }
+
+            if (!hadMistake && progress.hasMistake()) {
+                // only the first wrong character is reported, until it is deleted
+                client.sendMessage("Mistake at character " + (progress.getCorrect() + 1) + ". Delete it to continue!\nEND");
+            }
+
+            this.sendProgress(client, others, progress, false);
+        }
+    }
+
+    /**
+     * Keeps the times stamped by the client before its next input. A malformed stamp discards the previous one.
+     * @param stamp message with the client's clock when it received the sentence and when it typed the next input
+     */
+    private void stamp(String stamp) {
+        String[] fields = stamp.split(" ");
+        try {
+            this.stampStart = Long.parseLong(fields[1]);
+            this.stampEnd = Long.parseLong(fields[2]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            this.stampStart = -1;
+            this.stampEnd = -1;
+        }
+    }
+
+    /**
+     * Broadcasts the progress of the client whose turn it is to the other players and the spectators, encoded only once.
+     * Updates are rate-limited: those arriving before the interval has passed are held back, and only the latest is sent when it passes.
+     * @param client the client whose turn it is
+     * @param others the other players in this game
+     * @param progress the client's progress
+     * @param force true to send the update regardless of the rate limit
+     */
+    private void sendProgress(Client client, ArrayList<Client> others, TypingProgress progress, boolean force) {
+        long currentTime = System.currentTimeMillis();
+        if (!force && currentTime - this.lastProgressTime < PROGRESS_INTERVAL) {
+            this.progressPending = true;
+            return;
+        }
+
+        this.lastProgressTime = currentTime;
+        this.progressPending = false;
+        this.stream.publish(Client.broadcast(others, client.getPlayer().getUsername() + " progress: " + progress.getCorrect() + "/" + progress.getLength() + " characters.\nEND"));
+    }
+
+    /**
+     * Sorts the clients by ascending play time and computes each player's ranking increment, which the Server publishes to its ranking thread.
+     * Then, displays this game results for each client, distinguishing between who won and who lost, and for the spectators.
      */
     private void showResults() {
         // sorts the clients by ascending play time
         this.clients.sort((c1, c2) -> Float.compare(c1.getPlayer().getPlayTime(), c2.getPlayer().getPlayTime()));
 
         StringBuilder results = new StringBuilder();
+        String[] usernames = new String[this.clients.size()];
+        int[] playTimes = new int[this.clients.size()];
+        this.increments = new int[this.clients.size()];
         for (int i = 0; i < this.clients.size(); i++) {
             // builds the string with the results
             Client client = this.clients.get(i);
+            usernames[i] = client.getPlayer().getUsername();
 
-            client.getPlayer().incrementRanking(this.clients.size() - i - 1);
+            this.increments[i] = this.clients.size() - i - 1;
 
             results.append(i + 1).append(". ").append(client.getPlayer().getUsername()).append(": ");
 
@@ -126,8 +331,10 @@ public class Game {
             if (playTime == Float.MAX_VALUE) {
                 // the player disconnected when it was its turn to play
                 results.append("disconnected\n");
+                playTimes[i] = -1;
             } else {
                 results.append(playTime).append(" seconds\n");
+                playTimes[i] = Math.round(playTime * 1000);
             }
 
             client.getPlayer().setPlayTime(-1);
@@ -135,21 +342,19 @@ public class Game {
 
         assert this.winner != null;
 
-        try {
-            winner.sendMessage("You won!\n" + results + "\nEND");
-        } catch (IOException e) {
-            System.out.println("Client " + this.winner.getPlayer().getUsername() + " (winner) was disconnected before knowing results.");
+        // the whole game is kept, so the rankings can be recomputed later, even with another rating model
+        if (this.history != null) {
+            this.history.append(this.clock.millis(), this.goal, usernames, playTimes);
         }
 
+        // the results are encoded only once and shared by every client who lost
+        ByteBuffer won = Client.encode("You won!\n" + results + "\nEND");
+        ByteBuffer lost = Client.encode("You lost!\n" + results + "\nEND");
+
         for (Client client : this.clients) {
-            if (!client.equals(winner)) {
-                try {
-                    client.sendMessage("You lost!\n" + results + "\nEND");
-                } catch (IOException e) {
-                    System.out.println("Client " + client.getPlayer().getUsername() + " disconnected before knowing results.");
-                }
-            }
+            client.enqueueMessage(client.equals(this.winner) ? won : lost);
         }
+        this.stream.publish(Client.encode("The game ended.\n" + results + "\nEND"));
     }
 
     /**
@@ -163,7 +368,12 @@ public class Game {
         for (Client client : this.clients) {
             try {
                 client.sendMessage("Do you want to try again? (Yes/No)\nEND");
-                String answer = client.receiveMessage().toUpperCase();
+                String answer = client.receiveMessage();
+                while (answer.startsWith(ClockSync.PONG)) {
+                    // a pong that arrived after the synchronization of the client's turn timed out is not its answer
+                    answer = client.receiveMessage();
+                }
+                answer = answer.toUpperCase();
                 if (answer.equals("YES") || answer.equals("Y")) {
                     newClients.add(client);
                 } else {
@@ -0,0 +1,348 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class GameHistory {
+    private static final int MAGIC = 0x47485331; // "GHS1"
+    private static final int BLOCK_HEADER_SIZE = 16;
+
+    private static final int BLOCK_SIZE = 64 * 1024; // uncompressed bytes of games gathered before a block is compressed and appended
+    private static final long BLOCK_INTERVAL = 10000; // maximum time a finished game waits in memory before it is appended, in milliseconds
+
+    /**
+     * A finished game: when it ended, the sentence written and the team, ordered by position, with each player's play time.
+     */
+    public static class GameRecord {
+        public final long time;
+        public final String sentence;
+        public final String[] usernames;
+        public final int[] playTimes;
+
+        GameRecord(long time, String sentence, String[] usernames, int[] playTimes) {
+            this.time = time;
+            this.sentence = sentence;
+            this.usernames = usernames;
+            this.playTimes = playTimes;
+        }
+    }
+
+    private final FileChannel channel;
+    private final ReentrantLock lock;
+
+    // games not yet appended, encoded but not compressed
+    private final ByteArrayOutputStream pending;
+    private final DataOutputStream pendingOutput;
+    private int pendingGames = 0;
+    private long pendingSince = 0;
+    private long lastTime = 0;
+
+    /**
+     * Constructs a new GameHistory object that appends to a given file, creating it if it does not exist.
+     * A block left incomplete by a crash is discarded, so new blocks are appended after the last complete one.
+     * @param filename name of the history file
+     * @throws IOException If an I/O error occurred or the file is not a game history
+     */
+    public GameHistory(String filename) throws IOException {
+        this.lock = new ReentrantLock();
+        this.pending = new ByteArrayOutputStream(BLOCK_SIZE);
+        this.pendingOutput = new DataOutputStream(this.pending);
+
+        this.channel = FileChannel.open(Path.of(filename), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (this.channel.size() == 0) {
+            this.channel.write(ByteBuffer.allocate(4).putInt(0, MAGIC), 0);
+        }
+
+        long end = GameHistory.scan(this.channel, new ArrayList<>());
+        if (end < this.channel.size()) {
+            System.out.println("Discarded " + (this.channel.size() - end) + " bytes of an incomplete block at the end of the game history " + filename + ".");
+            this.channel.truncate(end);
+        }
+        this.channel.position(end);
+    }
+
+    /**
+     * Records a finished game. Games are gathered in memory and appended as a compressed block when the block is full
+     * or the oldest game in it has waited for the block interval.
+     * @param time time when the game ended
+     * @param sentence the sentence written
+     * @param usernames usernames of the team, ordered by position
+     * @param playTimes play time of each player, in milliseconds, or a negative number if the player disconnected
+     */
+    public void append(long time, String sentence, String[] usernames, int[] playTimes) {
+        this.lock.lock();
+        try {
+            if (this.pendingGames == 0) {
+                this.pendingSince = time;
+            }
+
+            // times are stored as the difference to the previous game, which is small and takes one or two bytes
+            TraceRecorder.writeVarLong(this.pendingOutput, this.pendingGames == 0 ? time : Math.max(time - this.lastTime, 0));
+            this.lastTime = Math.max(time, this.lastTime);
+            GameHistory.writeString(this.pendingOutput, sentence);
+            TraceRecorder.writeVarLong(this.pendingOutput, usernames.length);
+            for (int i = 0; i < usernames.length; i++) {
+                GameHistory.writeString(this.pendingOutput, usernames[i]);
+                TraceRecorder.writeVarLong(this.pendingOutput, playTimes[i] < 0 ? 0 : playTimes[i] + 1L);
+            }
+            this.pendingGames++;
+
+            if (this.pending.size() >= BLOCK_SIZE || time - this.pendingSince >= BLOCK_INTERVAL) {
+                this.appendBlock();
+            }
+        } catch (IOException e) {
+            System.out.println("Game history exception: " + e.getMessage() + ".");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the pending games if the oldest of them has waited for the block interval, so a quiet Server does not keep them in memory.
+     * @param time current time
+     */
+    public void flush(long time) {
+        this.lock.lock();
+        try {
+            if (this.pendingGames > 0 && time - this.pendingSince >= BLOCK_INTERVAL) {
+                this.appendBlock();
+            }
+        } catch (IOException e) {
+            System.out.println("Game history exception: " + e.getMessage() + ".");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the pending games and closes the history file.
+     * @throws IOException If an I/O error occurred
+     */
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.appendBlock();
+            this.channel.close();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Compresses the pending games into a block and appends it to the file. Must be called while holding the lock.
+     * Each block has its sizes, number of games and checksum before the compressed games, so an incomplete block is detected.
+     * @throws IOException If an I/O error occurred
+     */
+    private void appendBlock() throws IOException {
+        if (this.pendingGames == 0) {
+            return;
+        }
+
+        byte[] games = this.pending.toByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(games);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(games.length / 2);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        CRC32 crc = new CRC32();
+        crc.update(compressed.toByteArray());
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + compressed.size());
+        block.putInt(games.length).putInt(compressed.size()).putInt(this.pendingGames).putInt((int) crc.getValue());
+        block.put(compressed.toByteArray()).flip();
+        while (block.hasRemaining()) {
+            this.channel.write(block);
+        }
+        this.channel.force(false);
+
+        this.pending.reset();
+        this.pendingGames = 0;
+    }
+
+    /**
+     * Lists the offsets of the complete blocks of a history file, reading only their headers.
+     * @param channel the history file's channel
+     * @return the offset of each block, followed by the offset where the last complete block ends
+     * @throws IOException If an I/O error occurred or the file is not a game history
+     */
+    public static long[] blocks(FileChannel channel) throws IOException {
+        ArrayList<Long> offsets = new ArrayList<>();
+        long position = GameHistory.scan(channel, offsets);
+        offsets.add(position);
+        return offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Reads, decompresses and decodes a block of games, after checking its checksum, so a block corrupted on disk is never decoded.
+     * @param channel the history file's channel
+     * @param offset offset of the block
+     * @param consumer receives each game of the block, in the order they ended
+     * @return the number of games in the block
+     * @throws IOException If an I/O error occurred or the block is corrupted
+     */
+    public static int readBlock(FileChannel channel, long offset, Consumer<GameRecord> consumer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        GameHistory.readFully(channel, header, offset);
+        int length = header.getInt(0);
+        int compressedLength = header.getInt(4);
+        int games = header.getInt(8);
+        if (length < 0 || compressedLength <= 0 || games < 0) {
+            throw new IOException("Corrupted game history block at offset " + offset);
+        }
+
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+        GameHistory.readFully(channel, compressed, offset + BLOCK_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(compressed.array());
+        if ((int) crc.getValue() != header.getInt(12)) {
+            throw new IOException("Corrupted game history block at offset " + offset + ": checksum mismatch");
+        }
+
+        byte[] block = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            if (inflater.inflate(block) != length) {
+                throw new IOException("Corrupted game history block at offset " + offset);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted game history block at offset " + offset + ": " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+
+        // the block is decoded straight from its array, which is much faster than through a stream
+        ByteBuffer input = ByteBuffer.wrap(block);
+        long time = 0;
+        for (int game = 0; game < games; game++) {
+            time = game == 0 ? GameHistory.readVarLong(input) : time + GameHistory.readVarLong(input);
+            String sentence = GameHistory.readString(input);
+            int players = (int) GameHistory.readVarLong(input);
+            String[] usernames = new String[players];
+            int[] playTimes = new int[players];
+            for (int i = 0; i < players; i++) {
+                usernames[i] = GameHistory.readString(input);
+                playTimes[i] = (int) GameHistory.readVarLong(input) - 1;
+            }
+            consumer.accept(new GameRecord(time, sentence, usernames, playTimes));
+        }
+
+        return games;
+    }
+
+    /**
+     * Walks the block headers from the start of the file until the end or an incomplete block.
+     * Only the last block's checksum is checked here, since it is the only one a crash can leave incomplete; the checksums of
+     * the other blocks are checked by readBlock, when their games are read.
+     * @param channel the history file's channel
+     * @param offsets receives the offset of each complete block
+     * @return the offset where the last complete block ends
+     * @throws IOException If an I/O error occurred or the file is not a game history
+     */
+    private static long scan(FileChannel channel, ArrayList<Long> offsets) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        if (channel.read(magic, 0) < 4 || magic.getInt(0) != MAGIC) {
+            throw new IOException("Invalid game history file");
+        }
+
+        long size = channel.size();
+        long position = 4;
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        while (position + BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            GameHistory.readFully(channel, header, position);
+            long end = position + BLOCK_HEADER_SIZE + header.getInt(4);
+            if (header.getInt(4) <= 0 || end > size) {
+                break;
+            }
+
+            if (end + BLOCK_HEADER_SIZE > size && !GameHistory.checksumMatches(channel, position, header)) {
+                break;
+            }
+
+            offsets.add(position);
+            position = end;
+        }
+
+        return position;
+    }
+
+    /**
+     * @param channel the history file's channel
+     * @param position offset of the block
+     * @param header the block's header
+     * @return true if the block's compressed games match its checksum; false if otherwise
+     * @throws IOException If an I/O error occurred
+     */
+    private static boolean checksumMatches(FileChannel channel, long position, ByteBuffer header) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(header.getInt(4));
+        GameHistory.readFully(channel, compressed, position + BLOCK_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(compressed.array());
+        return (int) crc.getValue() == header.getInt(12);
+    }
+
+    /**
+     * @param channel channel to read from
+     * @param buffer buffer to fill
+     * @param position offset to read from
+     * @throws IOException If an I/O error occurred or the file ended before the buffer was filled
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated game history");
+            }
+        }
+    }
+
+    /**
+     * @param output stream to write to
+     * @param value string to write as its length followed by its UTF-8 bytes
+     * @throws IOException If an I/O error occurred
+     */
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        TraceRecorder.writeVarLong(output, bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * @param input decompressed block, positioned at a number written by TraceRecorder.writeVarLong
+     * @return the number read
+     */
+    private static long readVarLong(ByteBuffer input) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * @param input decompressed block, positioned at a string written by writeString
+     * @return the string read
+     */
+    private static String readString(ByteBuffer input) {
+        int length = (int) GameHistory.readVarLong(input);
+        String value = new String(input.array(), input.position(), length, StandardCharsets.UTF_8);
+        input.position(input.position() + length);
+        return value;
+    }
+}
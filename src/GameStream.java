@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class GameStream {
+    private static final int CAPACITY = 64; // events kept for the spectators, a power of two
+    private static final long WAKE_UP_INTERVAL = 100; // maximum time a spectator waits without checking for new events, in milliseconds
+
+    /**
+     * An encoded event of a game with its sequence number, so a spectator can tell if its slot was overwritten.
+     */
+    private static class Event {
+        final long sequence;
+        final ByteBuffer buffer;
+
+        Event(long sequence, ByteBuffer buffer) {
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A spectator's position in the stream. Each spectator reads the events at its own pace, in its own thread.
+     */
+    public class Cursor {
+        private long next;
+        private long skipped = 0;
+
+        /**
+         * Constructs a new Cursor object at the oldest event still kept, so a spectator who arrives late sees as much of the game as possible.
+         */
+        private Cursor() {
+            this.next = Math.max(GameStream.this.published - CAPACITY, 0);
+        }
+
+        /**
+         * Waits for the next event. If the spectator fell so far behind that the event was overwritten, it skips ahead to the oldest event still kept.
+         * @return the next encoded event, shared with every spectator, or null if the game ended and every event was read
+         * @throws InterruptedException If the spectator's thread is interrupted while waiting
+         */
+        public ByteBuffer next() throws InterruptedException {
+            while (true) {
+                // the game ends after its last event is published, so no event is missed after seeing it ended
+                boolean closed = GameStream.this.closed;
+                long published = GameStream.this.published;
+
+                if (this.next < published) {
+                    Event event = GameStream.this.events.get((int) (this.next & (CAPACITY - 1)));
+                    if (event.sequence == this.next) {
+                        this.next++;
+                        return event.buffer;
+                    }
+
+                    // the slot was reused by a newer event, which is never older than the oldest kept
+                    long oldest = Math.max(GameStream.this.published - CAPACITY, this.next + 1);
+                    this.skipped += oldest - this.next;
+                    this.next = oldest;
+                    continue;
+                }
+
+                if (closed) {
+                    return null;
+                }
+
+                GameStream.this.await(this.next);
+            }
+        }
+
+        /**
+         * @return the number of events this spectator skipped for falling behind
+         */
+        public long getSkipped() {
+            return this.skipped;
+        }
+
+        /**
+         * Stops following the stream.
+         */
+        public void close() {
+            GameStream.this.spectators.decrementAndGet();
+        }
+    }
+
+    // only the game's thread publishes, so the slots and the sequence number need no lock to be written
+    private final AtomicReferenceArray<Event> events;
+    private volatile long published = 0;
+    private volatile boolean closed = false;
+
+    // the spectators wait for new events on this condition; the game's thread never waits for its lock
+    private final ReentrantLock lock;
+    private final Condition changed;
+    private final AtomicInteger spectators;
+
+    /**
+     * Constructs a new GameStream object with no events.
+     */
+    public GameStream() {
+        this.events = new AtomicReferenceArray<>(CAPACITY);
+        this.lock = new ReentrantLock();
+        this.changed = this.lock.newCondition();
+        this.spectators = new AtomicInteger();
+    }
+
+    /**
+     * Publishes an event of the game, overwriting the oldest one if the stream is full. Must only be called by the game's thread.
+     * @param buffer encoded event, which is never modified, so it can also be the buffer sent to the players
+     */
+    public void publish(ByteBuffer buffer) {
+        long sequence = this.published;
+        this.events.set((int) (sequence & (CAPACITY - 1)), new Event(sequence, buffer));
+        this.published = sequence + 1;
+        this.wakeUp();
+    }
+
+    /**
+     * Ends the stream, once the game published its last event. Must only be called by the game's thread.
+     */
+    public void close() {
+        this.closed = true;
+        this.wakeUp();
+    }
+
+    /**
+     * Starts following the stream.
+     * @return a new cursor at the oldest event still kept
+     */
+    public Cursor subscribe() {
+        this.spectators.incrementAndGet();
+        return new Cursor();
+    }
+
+    /**
+     * @return the number of spectators following the stream
+     */
+    public int getSpectators() {
+        return this.spectators.get();
+    }
+
+    /**
+     * Wakes up the spectators waiting for new events, unless one of them is holding the lock; those spectators miss the signal
+     * and see the event when their wait times out, so the game's thread is never delayed by the spectators.
+     */
+    private void wakeUp() {
+        if (this.lock.tryLock()) {
+            try {
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until an event with the given sequence number is published, the stream ends or the wake-up interval passes.
+     * @param sequence sequence number of the event to wait for
+     * @throws InterruptedException If the waiting thread is interrupted
+     */
+    private void await(long sequence) throws InterruptedException {
+        this.lock.lock();
+        try {
+            if (this.published <= sequence && !this.closed) {
+                this.changed.await(WAKE_UP_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
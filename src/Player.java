@@ -5,10 +5,12 @@ import java.util.Base64;
 import java.util.Objects;
 
 public class Player {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final String username;
     private final String password;
     private String token;
-    private int ranking;
+    private volatile int ranking; // only changed by the ranking thread, once the Player is in use by a Server
     private float playTime = -1;
 
     /**
@@ -21,7 +23,6 @@ public class Player {
         this.username = username;
         this.password = password;
         this.ranking = ranking;
-        this.generateToken();
     }
 
     /**
@@ -44,9 +45,14 @@ public class Player {
     }
 
     /**
+     * Gets this Player's token to reconnect, generating it the first time it is needed, so loading the database does not generate any token.
      * @return this Player's token to reconnect
      */
     public String getToken() {
+        if (this.token == null) {
+            this.generateToken();
+        }
+
         return this.token;
     }
 
@@ -75,11 +81,22 @@ public class Player {
      * Gets a random token for reconnection with the format username-number of 4 digits.
      */
     public void generateToken() {
-        this.token = this.username + "-" + (new SecureRandom()).nextInt(1000, 9999);
+        this.token = this.username + "-" + Player.RANDOM.nextInt(1000, 9999);
+    }
+
+    /**
+     * Restores a token generated before the Server restarted, unless this Player already has a token.
+     * @param token token to reconnect
+     */
+    public void restoreToken(String token) {
+        if (this.token == null) {
+            this.token = token;
+        }
     }
 
     /**
      * Increments this Player's ranking with the score of the last game played.
+     * While a Server is running, only its RankingUpdater calls this method, so the ranking has a single writer.
      * @param increment score
      */
     public void incrementRanking(int increment) {
@@ -0,0 +1,492 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+public class PlayerStore {
+    private static final int MAGIC = 0x504c5331; // "PLS1"
+    private static final int HEADER_SIZE = 32;
+
+    // each slot is: used flag (1 byte), username length (1 byte), username (64 bytes), password hash (32 bytes), ranking (4 bytes)
+    public static final int USERNAME_CAPACITY = 64;
+    public static final int HASH_SIZE = 32;
+    private static final int USERNAME_OFFSET = 2;
+    private static final int HASH_OFFSET = USERNAME_OFFSET + USERNAME_CAPACITY;
+    private static final int RANKING_OFFSET = HASH_OFFSET + HASH_SIZE;
+    private static final int SLOT_SIZE = RANKING_OFFSET + 4;
+
+    private static final long INITIAL_SLOTS = 1024;
+    private static final double MAX_LOAD = 0.7; // fraction of used slots above which the table doubles
+
+    /**
+     * A Player kept in memory, with the ranking last written to the file.
+     */
+    private static class CachedPlayer {
+        final Player player;
+        int storedRanking;
+        int pins = 0;
+
+        CachedPlayer(Player player) {
+            this.player = player;
+            this.storedRanking = player.getRanking();
+        }
+    }
+
+    private final Path path;
+    private final int cacheSize;
+    private final ReentrantLock lock;
+
+    private FileChannel channel;
+    private long slots;
+    private long size;
+
+    // unpinned Players, from the least to the most recently used, and Players in a queue or in a game, which are never evicted
+    private final LinkedHashMap<String, CachedPlayer> cache;
+    private final HashMap<String, CachedPlayer> pinned;
+
+    /**
+     * Constructs a new PlayerStore object backed by a file with an on-disk hash table of fixed-size slots.
+     * If the file does not exist, it is created empty.
+     * @param filename name of the store file
+     * @param cacheSize maximum number of unpinned Players kept in memory
+     * @throws IOException If an I/O error occurred or the file is not a store
+     */
+    public PlayerStore(String filename, int cacheSize) throws IOException {
+        this.path = Path.of(filename);
+        this.cacheSize = cacheSize;
+        this.lock = new ReentrantLock();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        this.pinned = new HashMap<>();
+
+        if (Files.exists(this.path) && Files.size(this.path) > 0) {
+            this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            this.channel.read(header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Invalid player store file " + filename);
+            }
+            this.slots = header.getLong(4);
+            this.size = header.getLong(12);
+        } else {
+            this.channel = PlayerStore.create(this.path, INITIAL_SLOTS);
+            this.slots = INITIAL_SLOTS;
+            this.size = 0;
+        }
+    }
+
+    /**
+     * @return the number of Players in this store
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Passes the ranking of every Player to a consumer. Slots are streamed in blocks, so the Players are never all in memory;
+     * the Players kept in memory are passed with their current ranking.
+     * @param consumer consumer of the rankings
+     * @throws IOException If an I/O error occurred
+     */
+    public void forEachRanking(IntConsumer consumer) throws IOException {
+        this.lock.lock();
+        try {
+            ByteBuffer block = ByteBuffer.allocate(SLOT_SIZE * 1024);
+            for (long index = 0; index < this.slots; ) {
+                block.clear();
+                block.limit((int) Math.min(block.capacity(), (this.slots - index) * SLOT_SIZE));
+                while (block.hasRemaining()) {
+                    if (this.channel.read(block, PlayerStore.offset(index) + block.position()) < 0) {
+                        throw new EOFException("Truncated player store file " + this.path);
+                    }
+                }
+
+                for (int i = 0; i < block.limit(); i += SLOT_SIZE, index++) {
+                    if (block.get(i) != 0) {
+                        byte[] name = new byte[block.get(i + 1)];
+                        block.get(i + USERNAME_OFFSET, name);
+                        CachedPlayer cached = this.cached(new String(name, StandardCharsets.UTF_8));
+                        consumer.accept(cached == null ? block.getInt(i + RANKING_OFFSET) : cached.player.getRanking());
+                    }
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the Player with a given username, reading it from the file if it is not cached.
+     * @param username username to find
+     * @return the corresponding Player if it exists; null otherwise
+     * @throws IOException If an I/O error occurred
+     */
+    public Player get(String username) throws IOException {
+        this.lock.lock();
+        try {
+            CachedPlayer cached = this.cached(username);
+            if (cached != null) {
+                return cached.player;
+            }
+
+            ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+            if (this.find(username, slot) < 0) {
+                return null;
+            }
+
+            byte[] hash = new byte[HASH_SIZE];
+            slot.get(HASH_OFFSET, hash);
+            Player player = new Player(username, Base64.getEncoder().encodeToString(hash), slot.getInt(RANKING_OFFSET));
+            this.cache(new CachedPlayer(player));
+            return player;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts a new Player, unless the username already exists.
+     * @param username username of the new Player
+     * @param password encrypted password of the new Player, as returned by Player.hashPassword
+     * @param ranking ranking of the new Player
+     * @return the new Player if the username did not exist; null otherwise
+     * @throws IOException If an I/O error occurred or the username is too long
+     */
+    public Player insert(String username, String password, int ranking) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (name.length > USERNAME_CAPACITY) {
+            throw new IOException("The username " + username + " is longer than " + USERNAME_CAPACITY + " bytes");
+        }
+
+        this.lock.lock();
+        try {
+            if (this.cached(username) != null || this.find(username, ByteBuffer.allocate(SLOT_SIZE)) >= 0) {
+                return null;
+            }
+
+            if (this.size + 1 > this.slots * MAX_LOAD) {
+                this.grow();
+            }
+
+            PlayerStore.put(this.channel, this.slots, name, Base64.getDecoder().decode(password), ranking);
+            this.size++;
+            this.writeHeader();
+
+            Player player = new Player(username, password, ranking);
+            this.cache(new CachedPlayer(player));
+            return player;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Pins a Player, so it stays in memory while it is in a queue or in a game. Pins are counted.
+     * @param player Player returned by this store
+     */
+    public void pin(Player player) {
+        this.lock.lock();
+        try {
+            CachedPlayer cached = this.cache.remove(player.getUsername());
+            if (cached == null) {
+                cached = this.pinned.get(player.getUsername());
+            }
+            if (cached == null) {
+                cached = new CachedPlayer(player);
+            }
+
+            cached.pins++;
+            this.pinned.put(player.getUsername(), cached);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Unpins a Player. When it has no pins left, it can be evicted like any other cached Player.
+     * @param player Player previously pinned
+     */
+    public void unpin(Player player) {
+        this.lock.lock();
+        try {
+            CachedPlayer cached = this.pinned.get(player.getUsername());
+            if (cached == null || --cached.pins > 0) {
+                return;
+            }
+
+            this.pinned.remove(player.getUsername());
+            this.cache(cached);
+        } catch (IOException e) {
+            System.out.println("Player store exception when evicting a player: " + e.getMessage() + ".");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the ranking of every cached Player whose ranking changed since it was last written and forces the changes to disk.
+     * @throws IOException If an I/O error occurred
+     */
+    public void flush() throws IOException {
+        this.lock.lock();
+        try {
+            for (CachedPlayer cached : this.pinned.values()) {
+                this.writeBack(cached);
+            }
+            for (CachedPlayer cached : this.cache.values()) {
+                this.writeBack(cached);
+            }
+            this.channel.force(false);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the rankings of some Players, if they changed since they were last written, and forces the changes to disk.
+     * @param players Players returned by this store
+     * @throws IOException If an I/O error occurred
+     */
+    public void flush(Collection<Player> players) throws IOException {
+        this.lock.lock();
+        try {
+            for (Player player : players) {
+                CachedPlayer cached = this.cached(player.getUsername());
+                if (cached != null) {
+                    this.writeBack(cached);
+                }
+            }
+            this.channel.force(false);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the store file, after flushing it.
+     * @throws IOException If an I/O error occurred
+     */
+    public void close() throws IOException {
+        this.flush();
+        this.channel.close();
+    }
+
+    /**
+     * Must be called while holding the lock.
+     * @param username username to find
+     * @return the cached Player with the username, or null if it is not in memory
+     */
+    private CachedPlayer cached(String username) {
+        CachedPlayer cached = this.pinned.get(username);
+        return cached != null ? cached : this.cache.get(username);
+    }
+
+    /**
+     * Adds a Player to the cache as the most recently used, evicting the least recently used Players above the cache size.
+     * Must be called while holding the lock.
+     * @param cached Player to add
+     * @throws IOException If an I/O error occurred when writing an evicted Player
+     */
+    private void cache(CachedPlayer cached) throws IOException {
+        this.cache.put(cached.player.getUsername(), cached);
+
+        Iterator<Map.Entry<String, CachedPlayer>> iterator = this.cache.entrySet().iterator();
+        while (this.cache.size() > this.cacheSize && iterator.hasNext()) {
+            CachedPlayer evicted = iterator.next().getValue();
+            this.writeBack(evicted);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Writes a Player's ranking to its slot if it changed. Must be called while holding the lock.
+     * @param cached Player to write
+     * @throws IOException If an I/O error occurred
+     */
+    private void writeBack(CachedPlayer cached) throws IOException {
+        int ranking = cached.player.getRanking();
+        if (ranking == cached.storedRanking) {
+            return;
+        }
+
+        long slot = this.find(cached.player.getUsername(), ByteBuffer.allocate(SLOT_SIZE));
+        if (slot >= 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(4).putInt(0, ranking);
+            this.channel.write(buffer, PlayerStore.offset(slot) + RANKING_OFFSET);
+            cached.storedRanking = ranking;
+        }
+    }
+
+    /**
+     * Probes the table for a username. Must be called while holding the lock.
+     * @param username username to find
+     * @param slot buffer where the slot is read
+     * @return the index of the slot with the username, or -1 if it does not exist
+     * @throws IOException If an I/O error occurred
+     */
+    private long find(String username, ByteBuffer slot) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        for (long index = PlayerStore.home(name, this.slots), probes = 0; probes < this.slots; index = (index + 1) % this.slots, probes++) {
+            slot.clear();
+            this.channel.read(slot, PlayerStore.offset(index));
+            if (slot.get(0) == 0) {
+                return -1;
+            }
+
+            if (PlayerStore.matches(slot, name)) {
+                return index;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Doubles the number of slots, rehashing every Player into a new file that then replaces the current one.
+     * Slots are streamed in blocks, so the Players are never all in memory. Must be called while holding the lock.
+     * @throws IOException If an I/O error occurred
+     */
+    private void grow() throws IOException {
+        long newSlots = this.slots * 2;
+        Path temporary = this.path.resolveSibling(this.path.getFileName() + ".grow");
+        FileChannel newChannel = PlayerStore.create(temporary, newSlots);
+
+        ByteBuffer block = ByteBuffer.allocate(SLOT_SIZE * 1024);
+        for (long index = 0; index < this.slots; ) {
+            block.clear();
+            block.limit((int) Math.min(block.capacity(), (this.slots - index) * SLOT_SIZE));
+            while (block.hasRemaining()) {
+                if (this.channel.read(block, PlayerStore.offset(index) + block.position()) < 0) {
+                    throw new EOFException("Truncated player store file " + this.path);
+                }
+            }
+
+            for (int i = 0; i < block.limit(); i += SLOT_SIZE, index++) {
+                if (block.get(i) != 0) {
+                    byte[] name = new byte[block.get(i + 1)];
+                    byte[] hash = new byte[HASH_SIZE];
+                    block.get(i + USERNAME_OFFSET, name);
+                    block.get(i + HASH_OFFSET, hash);
+                    PlayerStore.put(newChannel, newSlots, name, hash, block.getInt(i + RANKING_OFFSET));
+                }
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC).putLong(4, newSlots).putLong(12, this.size);
+        newChannel.write(header, 0);
+        newChannel.force(false);
+        newChannel.close();
+        this.channel.close();
+
+        Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.slots = newSlots;
+        System.out.println("The player store grew to " + newSlots + " slots.");
+    }
+
+    /**
+     * Writes the number of slots and Players to the header. Must be called while holding the lock.
+     * @throws IOException If an I/O error occurred
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC).putLong(4, this.slots).putLong(12, this.size);
+        this.channel.write(header, 0);
+    }
+
+    /**
+     * Creates an empty store file with a given number of slots.
+     * @param path path of the file
+     * @param slots number of slots
+     * @return the file's channel
+     * @throws IOException If an I/O error occurred
+     */
+    private static FileChannel create(Path path, long slots) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC).putLong(4, slots).putLong(12, 0);
+        channel.write(header, 0);
+        // writing the last byte sets the file's size; the slots in between read as zeros, which means unused
+        channel.write(ByteBuffer.allocate(1), PlayerStore.offset(slots) - 1);
+        return channel;
+    }
+
+    /**
+     * Writes a Player to the first unused slot after its home slot.
+     * @param channel the store file's channel
+     * @param slots number of slots
+     * @param name username, encoded in UTF-8
+     * @param hash raw password hash
+     * @param ranking ranking
+     * @throws IOException If an I/O error occurred
+     */
+    private static void put(FileChannel channel, long slots, byte[] name, byte[] hash, int ranking) throws IOException {
+        ByteBuffer flag = ByteBuffer.allocate(1);
+        long index = PlayerStore.home(name, slots);
+        while (true) {
+            flag.clear();
+            channel.read(flag, PlayerStore.offset(index));
+            if (flag.get(0) == 0) {
+                break;
+            }
+            index = (index + 1) % slots;
+        }
+
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.put(0, (byte) 1).put(1, (byte) name.length).put(USERNAME_OFFSET, name).put(HASH_OFFSET, hash).putInt(RANKING_OFFSET, ranking);
+        channel.write(slot, PlayerStore.offset(index));
+    }
+
+    /**
+     * @param slot a slot read from the file
+     * @param name username, encoded in UTF-8
+     * @return true if the slot holds the username; false if otherwise
+     */
+    private static boolean matches(ByteBuffer slot, byte[] name) {
+        if (slot.get(1) != name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length; i++) {
+            if (slot.get(USERNAME_OFFSET + i) != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param name username, encoded in UTF-8
+     * @param slots number of slots
+     * @return the first slot to probe for the username
+     */
+    private static long home(byte[] name, long slots) {
+        long hash = 1125899906842597L;
+        for (byte b : name) {
+            hash = 31 * hash + b;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return Math.floorMod(hash, slots);
+    }
+
+    /**
+     * @param slot index of a slot
+     * @return the offset of the slot in the file
+     */
+    private static long offset(long slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
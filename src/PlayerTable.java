@@ -0,0 +1,337 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+public class PlayerTable {
+    private static final int HASH_SIZE = 32;
+    private static final int INITIAL_ROWS = 1024;
+
+    /**
+     * A Player handle created for an active session, with the row it belongs to.
+     */
+    private static class Session {
+        final Player player;
+        final int row;
+        int pins = 0;
+
+        Session(Player player, int row) {
+            this.player = player;
+            this.row = row;
+        }
+    }
+
+    private final ReentrantLock lock;
+
+    // one row per player: the username is in the arena between two consecutive offsets, the raw password hash takes 32 bytes
+    private int rows;
+    private byte[] names;
+    private int[] nameOffsets;
+    private byte[] hashes;
+    private int[] rankings;
+
+    // open addressing table with the row of each username plus one, where 0 means an empty position
+    private int[] index;
+
+    // Players in a queue or in a game, by row; their rankings are copied to the table when they are saved or unpinned
+    private final HashMap<Integer, Session> sessions;
+
+    /**
+     * Constructs a new empty PlayerTable object.
+     */
+    public PlayerTable() {
+        this.lock = new ReentrantLock();
+        this.sessions = new HashMap<>();
+        this.names = new byte[INITIAL_ROWS * 8];
+        this.nameOffsets = new int[INITIAL_ROWS + 1];
+        this.hashes = new byte[INITIAL_ROWS * HASH_SIZE];
+        this.rankings = new int[INITIAL_ROWS];
+        this.index = new int[2 * INITIAL_ROWS];
+    }
+
+    /**
+     * Merges tables loaded in parallel, in order, into a single table and indexes its usernames.
+     * @param chunks tables to merge
+     * @return the merged table
+     */
+    public static PlayerTable merge(List<PlayerTable> chunks) {
+        PlayerTable table = new PlayerTable();
+        int rows = chunks.stream().mapToInt((chunk) -> chunk.rows).sum();
+        int nameBytes = chunks.stream().mapToInt((chunk) -> chunk.nameOffsets[chunk.rows]).sum();
+        table.names = new byte[Math.max(nameBytes, 1)];
+        table.nameOffsets = new int[rows + 1];
+        table.hashes = new byte[rows * HASH_SIZE];
+        table.rankings = new int[rows];
+
+        for (PlayerTable chunk : chunks) {
+            int nameStart = table.nameOffsets[table.rows];
+            System.arraycopy(chunk.names, 0, table.names, nameStart, chunk.nameOffsets[chunk.rows]);
+            for (int i = 1; i <= chunk.rows; i++) {
+                table.nameOffsets[table.rows + i] = nameStart + chunk.nameOffsets[i];
+            }
+            System.arraycopy(chunk.hashes, 0, table.hashes, table.rows * HASH_SIZE, chunk.rows * HASH_SIZE);
+            System.arraycopy(chunk.rankings, 0, table.rankings, table.rows, chunk.rows);
+            table.rows += chunk.rows;
+        }
+
+        table.reindex(Integer.highestOneBit(Math.max(rows, INITIAL_ROWS)) * 4);
+        return table;
+    }
+
+    /**
+     * @return the number of Players in this table
+     */
+    public int size() {
+        return this.rows;
+    }
+
+    /**
+     * Passes the ranking of every Player to a consumer. The Players in an active session are passed with their current ranking.
+     * @param consumer consumer of the rankings
+     */
+    public void forEachRanking(IntConsumer consumer) {
+        this.lock.lock();
+        try {
+            for (int row = 0; row < this.rows; row++) {
+                Session session = this.sessions.get(row);
+                consumer.accept(session == null ? this.rankings[row] : session.player.getRanking());
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a row with fields read from the database file, without indexing it. Only used while loading, before the table is merged.
+     * @param line bytes of the line
+     * @param nameEnd index after the last byte of the username, which starts at the beginning of the line
+     * @param hashStart index of the first character of the Base64 password hash
+     * @param hashEnd index after the last character of the Base64 password hash
+     * @param ranking ranking
+     * @throws IllegalArgumentException If the password hash is not valid Base64 or does not have the size of a hash, meaning the line is malformed
+     */
+    void load(byte[] line, int nameEnd, int hashStart, int hashEnd, int ranking) {
+        ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(line, hashStart, hashEnd - hashStart));
+        if (decoded.remaining() != HASH_SIZE) {
+            throw new IllegalArgumentException("Malformed database line: " + new String(line, 0, hashEnd, StandardCharsets.UTF_8));
+        }
+
+        byte[] hash = new byte[HASH_SIZE];
+        decoded.get(hash);
+        this.append(line, 0, nameEnd, hash, ranking);
+    }
+
+    /**
+     * Gets the Player with a given username. A Player in an active session is always returned by the same handle;
+     * otherwise, a new handle is created from the row, which is only kept if the Player is pinned.
+     * @param username username to find
+     * @return the corresponding Player if it exists; null otherwise
+     */
+    public Player get(String username) {
+        this.lock.lock();
+        try {
+            int row = this.find(username.getBytes(StandardCharsets.UTF_8));
+            if (row < 0) {
+                return null;
+            }
+
+            Session session = this.sessions.get(row);
+            if (session != null) {
+                return session.player;
+            }
+
+            return new Player(username, Base64.getEncoder().encodeToString(Arrays.copyOfRange(this.hashes, row * HASH_SIZE, (row + 1) * HASH_SIZE)), this.rankings[row]);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts a new Player, unless the username already exists.
+     * @param username username of the new Player
+     * @param password encrypted password of the new Player, as returned by Player.hashPassword
+     * @param ranking ranking of the new Player
+     * @return the new Player if the username did not exist; null otherwise
+     */
+    public Player insert(String username, String password, int ranking) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+
+        this.lock.lock();
+        try {
+            if (this.find(name) >= 0) {
+                return null;
+            }
+
+            int row = this.append(name, 0, name.length, Base64.getDecoder().decode(password), ranking);
+            if (2 * this.rows > this.index.length) {
+                this.reindex(this.index.length * 2);
+            } else {
+                this.insertIndex(row);
+            }
+
+            return new Player(username, password, ranking);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Pins a Player, so its handle is kept while it is in a queue or in a game. Pins are counted.
+     * @param player Player returned by this table
+     */
+    public void pin(Player player) {
+        this.lock.lock();
+        try {
+            int row = this.find(player.getUsername().getBytes(StandardCharsets.UTF_8));
+            if (row < 0) {
+                return;
+            }
+
+            this.sessions.computeIfAbsent(row, (r) -> new Session(player, r)).pins++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Unpins a Player. When it has no pins left, its ranking is copied to the table and its handle is dropped.
+     * @param player Player previously pinned
+     */
+    public void unpin(Player player) {
+        this.lock.lock();
+        try {
+            int row = this.find(player.getUsername().getBytes(StandardCharsets.UTF_8));
+            Session session = this.sessions.get(row);
+            if (session == null || --session.pins > 0) {
+                return;
+            }
+
+            this.rankings[row] = session.player.getRanking();
+            this.sessions.remove(row);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes every Player to a database file, in the format username,password,ranking, with the rankings of the active sessions.
+     * @param output stream to write to
+     * @throws IOException If an I/O error occurred
+     */
+    public void write(OutputStream output) throws IOException {
+        this.lock.lock();
+        try {
+            for (Session session : this.sessions.values()) {
+                this.rankings[session.row] = session.player.getRanking();
+            }
+
+            Base64.Encoder encoder = Base64.getEncoder();
+            byte[] hash = new byte[HASH_SIZE];
+            byte[] encoded = new byte[encoder.encode(hash).length];
+            for (int row = 0; row < this.rows; row++) {
+                output.write(this.names, this.nameOffsets[row], this.nameOffsets[row + 1] - this.nameOffsets[row]);
+                output.write(',');
+                System.arraycopy(this.hashes, row * HASH_SIZE, hash, 0, HASH_SIZE);
+                encoder.encode(hash, encoded);
+                output.write(encoded);
+                output.write(',');
+                output.write(Integer.toString(this.rankings[row]).getBytes(StandardCharsets.ISO_8859_1));
+                output.write('\n');
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a row to the columns, growing them when they are full.
+     * @param name bytes with the username, encoded in UTF-8
+     * @param from index of the first byte of the username
+     * @param to index after the last byte of the username
+     * @param hash raw password hash
+     * @param ranking ranking
+     * @return the new row
+     */
+    private int append(byte[] name, int from, int to, byte[] hash, int ranking) {
+        int row = this.rows;
+        if (row == this.rankings.length) {
+            int capacity = Math.max(2 * row, INITIAL_ROWS);
+            this.nameOffsets = Arrays.copyOf(this.nameOffsets, capacity + 1);
+            this.hashes = Arrays.copyOf(this.hashes, capacity * HASH_SIZE);
+            this.rankings = Arrays.copyOf(this.rankings, capacity);
+        }
+
+        int nameStart = this.nameOffsets[row];
+        if (nameStart + to - from > this.names.length) {
+            this.names = Arrays.copyOf(this.names, Math.max(2 * this.names.length, nameStart + to - from));
+        }
+
+        System.arraycopy(name, from, this.names, nameStart, to - from);
+        this.nameOffsets[row + 1] = nameStart + to - from;
+        System.arraycopy(hash, 0, this.hashes, row * HASH_SIZE, HASH_SIZE);
+        this.rankings[row] = ranking;
+        this.rows++;
+        return row;
+    }
+
+    /**
+     * Finds the row of a username. Must be called while holding the lock.
+     * @param name username, encoded in UTF-8
+     * @return the row with the username, or -1 if it does not exist
+     */
+    private int find(byte[] name) {
+        int mask = this.index.length - 1;
+        for (int position = PlayerTable.hash(name, 0, name.length) & mask; this.index[position] != 0; position = (position + 1) & mask) {
+            int row = this.index[position] - 1;
+            int start = this.nameOffsets[row];
+            if (Arrays.equals(this.names, start, this.nameOffsets[row + 1], name, 0, name.length)) {
+                return row;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Rebuilds the index with a given capacity.
+     * @param capacity number of positions, a power of two
+     */
+    private void reindex(int capacity) {
+        this.index = new int[capacity];
+        for (int row = 0; row < this.rows; row++) {
+            this.insertIndex(row);
+        }
+    }
+
+    /**
+     * Adds a row to the first empty position of the index after its home position.
+     * @param row row to add
+     */
+    private void insertIndex(int row) {
+        int mask = this.index.length - 1;
+        int position = PlayerTable.hash(this.names, this.nameOffsets[row], this.nameOffsets[row + 1]) & mask;
+        while (this.index[position] != 0) {
+            position = (position + 1) & mask;
+        }
+        this.index[position] = row + 1;
+    }
+
+    /**
+     * @param bytes bytes of a username
+     * @param from index of the first byte
+     * @param to index after the last byte
+     * @return a well-mixed hash of the username
+     */
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ bytes[i]) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
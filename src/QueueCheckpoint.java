@@ -0,0 +1,122 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+
+public class QueueCheckpoint {
+    private static final int MAGIC = 0x51434b32; // "QCK2"
+
+    /**
+     * A Client waiting in the queue when the checkpoint was taken.
+     */
+    public static class Entry {
+        public final String username;
+        public final String token;
+        public final long queueArrivalTime;
+
+        Entry(String username, String token, long queueArrivalTime) {
+            this.username = username;
+            this.token = token;
+            this.queueArrivalTime = queueArrivalTime;
+        }
+    }
+
+    private final long time;
+    private final ArrayList<Entry> entries;
+
+    /**
+     * Constructs a new QueueCheckpoint object.
+     * @param time time when the checkpoint was taken
+     * @param entries Clients waiting in the queue
+     */
+    private QueueCheckpoint(long time, ArrayList<Entry> entries) {
+        this.time = time;
+        this.entries = entries;
+    }
+
+    /**
+     * @return the time when this checkpoint was taken
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return the Clients waiting in the queue when this checkpoint was taken
+     */
+    public ArrayList<Entry> getEntries() {
+        return this.entries;
+    }
+
+    /**
+     * Writes a checkpoint of the waiting queue to a file.
+     * Each shard is copied while holding only its own lock, and the file is replaced atomically, so a crash never leaves a partial checkpoint.
+     * The shards' ranking differences are not kept, since their controllers derive them again from the arrival times of the Clients.
+     * The temporary file is shared by every write, so the caller must not write two checkpoints of the same file at once.
+     * @param file checkpoint file
+     * @param waitingQueue shards of the waiting queue
+     * @param pending Clients restored from a previous checkpoint that did not reconnect yet, which are kept for another restart
+     * @param time current time
+     * @return the number of Clients in the checkpoint
+     * @throws IOException If an I/O error occurred
+     */
+    public static int write(Path file, QueueShard[] waitingQueue, Collection<Entry> pending, long time) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>(pending);
+        for (QueueShard shard : waitingQueue) {
+            shard.lock();
+            try {
+                for (Client client : shard.getClients()) {
+                    entries.add(new Entry(client.getPlayer().getUsername(), client.getPlayer().getToken(), client.getQueueArrivalTime()));
+                }
+            } finally {
+                shard.unlock();
+            }
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeLong(time);
+
+            output.writeInt(entries.size());
+            for (Entry entry : entries) {
+                output.writeUTF(entry.username);
+                output.writeUTF(entry.token);
+                output.writeLong(entry.queueArrivalTime);
+            }
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * Reads a checkpoint of the waiting queue from a file.
+     * @param file checkpoint file
+     * @return the checkpoint, or null if the file does not exist
+     * @throws IOException If an I/O error occurred or the file is not a checkpoint
+     */
+    public static QueueCheckpoint read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Invalid checkpoint file " + file);
+            }
+
+            long time = input.readLong();
+
+            int entryCount = input.readInt();
+            ArrayList<Entry> entries = new ArrayList<>(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                entries.add(new Entry(input.readUTF(), input.readUTF(), input.readLong()));
+            }
+
+            return new QueueCheckpoint(time, entries);
+        }
+    }
+}
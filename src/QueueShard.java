@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class QueueShard {
+    /**
+     * Maximum ranking difference between the players of a team when a shard starts matching or after it forms a team.
+     */
+    public static final int INITIAL_RANKING_DIFFERENCE = 5;
+
+    // the band only changes while holding the lock, but is read without it to find a ranking's shard
+    private volatile int minRanking;
+    private volatile int maxRanking;
+
+    private final ArrayList<Client> clients;
+    private final ReentrantLock lock;
+    private volatile String lockName;
+    private final Condition changed;
+    private boolean hasChanged = false;
+
+    private final ToleranceController controller;
+
+    private int rankingDifference = INITIAL_RANKING_DIFFERENCE;
+    private long lastLogTime = 0;
+    private long lastCheckIfAliveTime = 0;
+
+    /**
+     * Constructs a new QueueShard object for the players whose ranking is within a band.
+     * @param minRanking lowest ranking of the band (inclusive)
+     * @param maxRanking highest ranking of the band (inclusive)
+     * @param targetWait time within which every client should be matched, in milliseconds
+     */
+    public QueueShard(int minRanking, int maxRanking, long targetWait) {
+        this.minRanking = minRanking;
+        this.maxRanking = maxRanking;
+        this.clients = new ArrayList<>();
+        this.lock = new ReentrantLock();
+        this.lockName = "waitingQueue " + minRanking + "-" + maxRanking;
+        this.changed = this.lock.newCondition();
+        this.controller = new ToleranceController(targetWait);
+    }
+
+    /**
+     * Acquires the lock of this shard, which guards its clients and its matchmaking state, recording any contention.
+     */
+    public void lock() {
+        Events.lock(this.lock, this.lockName);
+    }
+
+    /**
+     * Releases the lock of this shard.
+     */
+    public void unlock() {
+        this.lock.unlock();
+    }
+
+    /**
+     * @return the clients waiting in this shard; must only be used while holding the lock
+     */
+    public ArrayList<Client> getClients() {
+        return this.clients;
+    }
+
+    /**
+     * @return the lowest ranking of this shard's band
+     */
+    public int getMinRanking() {
+        return this.minRanking;
+    }
+
+    /**
+     * @return the highest ranking of this shard's band
+     */
+    public int getMaxRanking() {
+        return this.maxRanking;
+    }
+
+    /**
+     * Changes this shard's band, when the bands are rebalanced. Must be called while holding the lock.
+     * @param minRanking lowest ranking of the band (inclusive)
+     * @param maxRanking highest ranking of the band (inclusive)
+     */
+    public void setBand(int minRanking, int maxRanking) {
+        this.minRanking = minRanking;
+        this.maxRanking = maxRanking;
+        this.lockName = "waitingQueue " + minRanking + "-" + maxRanking;
+    }
+
+    /**
+     * @return the controller of this shard's ranking difference; must only be used while holding the lock
+     */
+    public ToleranceController getController() {
+        return this.controller;
+    }
+
+    /**
+     * @return the maximum ranking difference between the players of a team formed in this shard
+     */
+    public int getRankingDifference() {
+        return this.rankingDifference;
+    }
+
+    /**
+     * @return the last time a change of the ranking difference was logged, or 0 if none was
+     */
+    public long getLastLogTime() {
+        return this.lastLogTime;
+    }
+
+    /**
+     * @return the last time the clients of this shard were checked, or 0 if this shard is empty
+     */
+    public long getLastCheckIfAliveTime() {
+        return this.lastCheckIfAliveTime;
+    }
+
+    /**
+     * @param rankingDifference maximum ranking difference between the players of a team formed in this shard
+     */
+    public void setRankingDifference(int rankingDifference) {
+        this.rankingDifference = rankingDifference;
+    }
+
+    /**
+     * @param lastLogTime last time a change of the ranking difference was logged
+     */
+    public void setLastLogTime(long lastLogTime) {
+        this.lastLogTime = lastLogTime;
+    }
+
+    /**
+     * @param lastCheckIfAliveTime last time the clients of this shard were checked
+     */
+    public void setLastCheckIfAliveTime(long lastCheckIfAliveTime) {
+        this.lastCheckIfAliveTime = lastCheckIfAliveTime;
+    }
+
+    /**
+     * Wakes up this shard's matchmaker, because a client was added. Must be called while holding the lock.
+     */
+    public void signalChange() {
+        this.hasChanged = true;
+        this.changed.signal();
+    }
+
+    /**
+     * Waits until a client is added to this shard or the timeout expires, whichever comes first.
+     * @param timeout maximum time to wait, in milliseconds
+     * @throws InterruptedException If the waiting thread is interrupted
+     */
+    public void awaitChange(long timeout) throws InterruptedException {
+        this.lock.lock();
+        try {
+            if (!this.hasChanged) {
+                this.changed.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            this.hasChanged = false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
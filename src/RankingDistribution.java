@@ -0,0 +1,100 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RankingDistribution {
+    private final ReentrantLock lock;
+
+    // number of players with each ranking, by ascending ranking
+    private final TreeMap<Integer, Integer> counts;
+    private long size = 0;
+
+    /**
+     * Constructs a new empty RankingDistribution object.
+     */
+    public RankingDistribution() {
+        this.lock = new ReentrantLock();
+        this.counts = new TreeMap<>();
+    }
+
+    /**
+     * Adds a player with a given ranking, either loaded from the database or registered.
+     * @param ranking the player's ranking
+     */
+    public void add(int ranking) {
+        this.lock.lock();
+        try {
+            this.counts.merge(ranking, 1, Integer::sum);
+            this.size++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a player from a ranking to another, after a game.
+     * @param from the player's ranking before the game
+     * @param to the player's ranking after the game
+     */
+    public void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+
+        this.lock.lock();
+        try {
+            Integer count = this.counts.get(from);
+            if (count == null) {
+                // a player missing from the distribution is added with its new ranking
+                this.size++;
+            } else if (count == 1) {
+                this.counts.remove(from);
+            } else {
+                this.counts.put(from, count - 1);
+            }
+            this.counts.merge(to, 1, Integer::sum);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Splits the rankings into bands with about the same number of players each.
+     * Each band starts at the first ranking with at least its share of the players below it. Players with the same ranking
+     * always share a band, so a ranking held by many players leaves the bands above it narrower, down to a single ranking.
+     * @param bands number of bands
+     * @return the lowest ranking of each band, in ascending order, starting at 0, or null if there are no players
+     */
+    public int[] quantiles(int bands) {
+        int[] lowest = new int[bands];
+        int band = 1;
+
+        this.lock.lock();
+        try {
+            if (this.size == 0) {
+                return null;
+            }
+
+            long seen = 0;
+            for (Map.Entry<Integer, Integer> entry : this.counts.entrySet()) {
+                while (band < bands && seen * bands >= band * this.size) {
+                    lowest[band++] = entry.getKey();
+                }
+                seen += entry.getValue();
+            }
+
+            // the bands left over start above the highest ranking, so they stay empty until a player gets there
+            while (band < bands) {
+                lowest[band++] = this.counts.lastKey() + 1;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        lowest[0] = 0;
+        for (int i = 1; i < bands; i++) {
+            lowest[i] = Math.max(lowest[i], lowest[i - 1] + 1);
+        }
+        return lowest;
+    }
+}
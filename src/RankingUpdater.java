@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RankingUpdater {
+    /**
+     * The result of a finished game: the ranking increment of each player and the players who left after it.
+     */
+    private static class Update {
+        final List<Player> players;
+        final int[] increments;
+        final List<Player> leaving;
+        final CompletableFuture<Void> applied;
+
+        Update(List<Player> players, int[] increments, List<Player> leaving) {
+            this.players = players;
+            this.increments = increments;
+            this.leaving = leaving;
+            this.applied = new CompletableFuture<>();
+        }
+    }
+
+    private final Database database;
+    private final ReentrantLock databaseLock;
+    private final RankingDistribution distribution;
+
+    // game threads only ever add to this queue, without locking; the ranking thread is its only consumer
+    private final ConcurrentLinkedQueue<Update> updates;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    // only used by the ranking thread: the players whose rankings changed since the last save and those to unpin after it
+    private final HashSet<Player> dirty;
+    private final ArrayList<Player> leaving;
+    private int games = 0;
+
+    /**
+     * Constructs a new RankingUpdater object and starts its thread, the only one that changes the rankings of the players.
+     * @param database database where the rankings are saved
+     * @param databaseLock lock of the database, shared with the authentication
+     * @param distribution rankings of every player, kept up to date with the new rankings
+     */
+    RankingUpdater(Database database, ReentrantLock databaseLock, RankingDistribution distribution) {
+        this.database = database;
+        this.databaseLock = databaseLock;
+        this.distribution = distribution;
+        this.updates = new ConcurrentLinkedQueue<>();
+        this.dirty = new HashSet<>();
+        this.leaving = new ArrayList<>();
+
+        this.thread = Thread.ofVirtual().name("ranking-updater").start(this::run);
+    }
+
+    /**
+     * Publishes the result of a finished game, to be applied by the ranking thread.
+     * @param players players of the game
+     * @param increments ranking increment of each player, in the same order
+     * @param leaving players who do not play again, to unpin once their rankings are saved
+     * @return a future completed when the rankings were applied, so the players can reenter the waiting queue with them
+     */
+    public CompletableFuture<Void> submit(List<Player> players, int[] increments, List<Player> leaving) {
+        Update update = new Update(players, increments, leaving);
+        this.updates.offer(update);
+        LockSupport.unpark(this.thread);
+        return update.applied;
+    }
+
+    /**
+     * Stops the ranking thread, after it applies and saves every result already published.
+     * @throws InterruptedException If interrupted while waiting for the ranking thread
+     */
+    public void close() throws InterruptedException {
+        this.closed = true;
+        LockSupport.unpark(this.thread);
+        this.thread.join();
+    }
+
+    /**
+     * Applies the published results as they arrive. Whenever there are no more results waiting, the whole batch is saved
+     * at once, so a save that takes a while covers every game that finished in the meantime.
+     * A result that fails to be applied or saved is reported and never stops this thread, so no game thread waits forever.
+     */
+    private void run() {
+        while (true) {
+            Update update = this.updates.poll();
+            if (update != null) {
+                try {
+                    this.apply(update);
+                } catch (RuntimeException e) {
+                    System.out.println("Ranking update exception: " + e.getMessage() + ".");
+                } finally {
+                    // the players reenter the waiting queue even if their rankings could not be applied
+                    update.applied.complete(null);
+                }
+                continue;
+            }
+
+            if (this.games > 0) {
+                try {
+                    this.save();
+                } catch (RuntimeException e) {
+                    // the players stay dirty, so they are saved with the next batch
+                    System.out.println("Ranking update exception: " + e.getMessage() + ". Trying again after the next game ends.");
+                }
+            }
+
+            if (this.closed && this.updates.isEmpty()) {
+                return;
+            }
+
+            // a result published after the poll unparks this thread, so it is never missed
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Applies the result of a game. The game thread carries on once the update is completed by run.
+     * @param update result of the game
+     */
+    private void apply(Update update) {
+        for (int i = 0; i < update.players.size(); i++) {
+            Player player = update.players.get(i);
+            int ranking = player.getRanking();
+            player.incrementRanking(update.increments[i]);
+            this.distribution.move(ranking, player.getRanking());
+            this.dirty.add(player);
+        }
+
+        this.leaving.addAll(update.leaving);
+        this.games++;
+    }
+
+    /**
+     * Saves the rankings changed by the applied results and unpins the players who left, whose rankings are now saved.
+     */
+    private void save() {
+        Events.lock(this.databaseLock, "databaseLock");
+        try {
+            this.database.save(this.dirty);
+            System.out.println("Updated database with the rankings of " + this.dirty.size() + " players from " + this.games + (this.games == 1 ? " game." : " games."));
+            this.dirty.clear();
+        } catch (IOException e) {
+            // the players stay dirty, so they are saved with the next batch
+            System.out.println("The database could not be updated after the game. Trying again after the next game ends.");
+        } finally {
+            try {
+                // an unpinned player whose ranking was not saved is written when it is evicted
+                for (Player player : this.leaving) {
+                    this.database.unpin(player);
+                }
+            } finally {
+                this.leaving.clear();
+                this.games = 0;
+                this.databaseLock.unlock();
+            }
+        }
+    }
+}
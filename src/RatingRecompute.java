@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RatingRecompute {
+    /**
+     * Two rating models: the points awarded by the Server (n-1 points to the first of n players, down to 0 to the last) and Elo.
+     */
+    enum RatingModel {
+        POINTS,
+        ELO
+    }
+
+    private static final int BLOCKS_PER_TASK = 16; // blocks decoded by a single fork/join task
+    private static final int GAMES_PER_TASK = 4096; // games rated by a single fork/join task
+    private static final double ELO_INITIAL_RATING = 1000;
+    private static final double ELO_K = 32; // maximum change of a player's rating in a game against one opponent
+
+    private final FileChannel channel;
+    private final ForkJoinPool pool;
+
+    // usernames are replaced by sequential ids while decoding, so the ratings are kept in arrays
+    private final ConcurrentHashMap<String, Integer> ids;
+    private final AtomicInteger nextId;
+
+    // the teams of every game, in the order they ended: the team size followed by the ids of the team, ordered by position
+    private int[] teams;
+    private int games;
+
+    /**
+     * Constructs a new RatingRecompute object that reads a game history.
+     * @param channel the history file's channel
+     */
+    private RatingRecompute(FileChannel channel) {
+        this.channel = channel;
+        this.pool = ForkJoinPool.commonPool();
+        this.ids = new ConcurrentHashMap<>();
+        this.nextId = new AtomicInteger();
+    }
+
+    /**
+     * Recomputes every ranking from the game history next to a database, in parallel, and optionally replaces the part of the database's
+     * rankings earned in the recorded games, keeping the points earned before the history was recorded.
+     * The Server must not be running when the rankings are replaced.
+     * @param args DATABASE_FILE RATING_MODEL [apply]
+     */
+    public static void main(String[] args) {
+        if ((args.length != 2 && args.length != 3) || (args.length == 3 && !args[2].equals("apply"))) {
+            System.out.println("Usage: RatingRecompute <DATABASE FILE: (*.csv/*.db)> <RATING MODEL (points/elo)> [apply]");
+            return;
+        }
+
+        RatingModel ratingModel;
+        try {
+            ratingModel = RatingModel.valueOf(args[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid rating model: " + args[1] + ". The rating model must be either points or elo.");
+            return;
+        }
+
+        Path historyFile = Path.of(args[0] + ".history");
+        try (FileChannel channel = FileChannel.open(historyFile, StandardOpenOption.READ)) {
+            RatingRecompute recompute = new RatingRecompute(channel);
+
+            long start = System.nanoTime();
+            recompute.decode();
+            long decodeTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int[] points = recompute.points();
+            int[] rankings = ratingModel == RatingModel.POINTS ? points : recompute.elo();
+            long rateTime = System.nanoTime() - start;
+
+            System.out.println("Decoded " + recompute.games + " games of " + recompute.ids.size() + " players from " + historyFile + " in " + decodeTime / 1000000 + " milliseconds.");
+            System.out.println("Recomputed the " + ratingModel.name().toLowerCase() + " rankings in " + rateTime / 1000000 + " milliseconds, with " + recompute.pool.getParallelism() + " threads.");
+
+            HashMap<String, Integer> byUsername = new HashMap<>(recompute.ids.size() * 2);
+            recompute.ids.forEach((username, id) -> byUsername.put(username, rankings[id]));
+            byUsername.entrySet().stream()
+                    .sorted((e1, e2) -> Integer.compare(e2.getValue(), e1.getValue()))
+                    .limit(10)
+                    .forEach((e) -> System.out.println(e.getKey() + ": " + e.getValue()));
+
+            if (args.length == 3) {
+                // Elo ratings are moved into the range of the points, so the rankings keep their scale, bands and difficulties
+                int[] recomputed = ratingModel == RatingModel.POINTS ? rankings : RatingRecompute.rescale(rankings, points);
+                HashMap<String, Integer> earned = new HashMap<>(recompute.ids.size() * 2);
+                HashMap<String, Integer> replacements = new HashMap<>(recompute.ids.size() * 2);
+                recompute.ids.forEach((username, id) -> {
+                    earned.put(username, points[id]);
+                    replacements.put(username, recomputed[id]);
+                });
+
+                int replaced = Database.replaceRankings(args[0], earned, replacements);
+                System.out.println("Replaced the rankings of " + replaced + " players in " + args[0] + ".");
+            }
+        } catch (IOException e) {
+            System.out.println("Rating recompute exception: " + e.getMessage() + ".");
+        }
+    }
+
+    /**
+     * Maps the ratings linearly onto the range of the points, so the lowest rating gets the fewest points and the highest gets the most.
+     * @param ratings rating of each player, by id
+     * @param points points of each player in the recorded games, by id
+     * @return the rescaled rating of each player, by id
+     */
+    private static int[] rescale(int[] ratings, int[] points) {
+        int minRating = Arrays.stream(ratings).min().orElse(0);
+        int maxRating = Arrays.stream(ratings).max().orElse(0);
+        int minPoints = Arrays.stream(points).min().orElse(0);
+        int maxPoints = Arrays.stream(points).max().orElse(0);
+
+        int[] rescaled = new int[ratings.length];
+        for (int id = 0; id < ratings.length; id++) {
+            rescaled[id] = maxRating == minRating ? minPoints
+                    : (int) Math.round(minPoints + (double) (ratings[id] - minRating) * (maxPoints - minPoints) / (maxRating - minRating));
+        }
+        return rescaled;
+    }
+
+    /**
+     * Decodes every block of the history in parallel, then joins the teams of all blocks in order.
+     * @throws IOException If an I/O error occurred or a block is corrupted
+     */
+    private void decode() throws IOException {
+        long[] blocks = GameHistory.blocks(this.channel);
+        int[][] decoded = new int[blocks.length - 1][];
+
+        try {
+            this.pool.invoke(new DecodeTask(blocks, decoded, 0, blocks.length - 1));
+        } catch (RuntimeException e) {
+            // the pool wraps the exception again when it was thrown by another of its threads
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+            }
+            throw e;
+        }
+
+        this.teams = new int[Arrays.stream(decoded).mapToInt((block) -> block.length - 1).sum()];
+        int position = 0;
+        for (int[] block : decoded) {
+            // the last element of each decoded block is its number of games
+            System.arraycopy(block, 0, this.teams, position, block.length - 1);
+            position += block.length - 1;
+            this.games += block[block.length - 1];
+        }
+    }
+
+    /**
+     * Decodes a range of blocks, splitting it in halves while it is larger than a task.
+     */
+    private class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] blocks;
+        private final int[][] decoded;
+        private final int from;
+        private final int to;
+
+        DecodeTask(long[] blocks, int[][] decoded, int from, int to) {
+            this.blocks = blocks;
+            this.decoded = decoded;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > BLOCKS_PER_TASK) {
+                int middle = (this.from + this.to) >>> 1;
+                RecursiveAction.invokeAll(new DecodeTask(this.blocks, this.decoded, this.from, middle), new DecodeTask(this.blocks, this.decoded, middle, this.to));
+                return;
+            }
+
+            for (int block = this.from; block < this.to; block++) {
+                IntList teams = new IntList();
+                try {
+                    int games = GameHistory.readBlock(RatingRecompute.this.channel, this.blocks[block], (game) -> {
+                        teams.add(game.usernames.length);
+                        for (String username : game.usernames) {
+                            // almost every username was already seen, so the lock-free lookup comes first
+                            Integer id = RatingRecompute.this.ids.get(username);
+                            if (id == null) {
+                                id = RatingRecompute.this.ids.computeIfAbsent(username, (u) -> RatingRecompute.this.nextId.getAndIncrement());
+                            }
+                            teams.add(id);
+                        }
+                    });
+                    teams.add(games);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                this.decoded[block] = teams.toArray();
+            }
+        }
+    }
+
+    /**
+     * Recomputes the rankings with the Server's points, which are a sum, so every range of games is summed in parallel and the sums are added.
+     * @return the ranking of each player, by id
+     */
+    private int[] points() {
+        int[] starts = this.gameStarts();
+        long[] points = this.pool.invoke(new PointsTask(starts, 0, this.games));
+
+        int[] rankings = new int[points.length];
+        for (int id = 0; id < points.length; id++) {
+            rankings[id] = (int) points[id];
+        }
+        return rankings;
+    }
+
+    /**
+     * Sums the points of a range of games, splitting it in halves while it is larger than a task.
+     */
+    private class PointsTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] starts;
+        private final int from;
+        private final int to;
+
+        PointsTask(int[] starts, int from, int to) {
+            this.starts = starts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (this.to - this.from > GAMES_PER_TASK * 16) {
+                int middle = (this.from + this.to) >>> 1;
+                PointsTask upper = new PointsTask(this.starts, middle, this.to);
+                upper.fork();
+                long[] points = new PointsTask(this.starts, this.from, middle).compute();
+                long[] upperPoints = upper.join();
+                for (int id = 0; id < points.length; id++) {
+                    points[id] += upperPoints[id];
+                }
+                return points;
+            }
+
+            int[] teams = RatingRecompute.this.teams;
+            long[] points = new long[RatingRecompute.this.ids.size()];
+            for (int game = this.from; game < this.to; game++) {
+                int start = this.starts[game];
+                int size = teams[start];
+                for (int position = 0; position < size; position++) {
+                    points[teams[start + 1 + position]] += size - position - 1;
+                }
+            }
+            return points;
+        }
+    }
+
+    /**
+     * Recomputes the rankings with Elo, where each game depends on the ratings left by the previous games of its players.
+     * The games are split into waves: a game belongs to the wave after the last wave of any of its players, so the games of a wave
+     * have no players in common and only depend on earlier waves. Each wave is rated in parallel, one wave after another.
+     * @return the ranking of each player, by id
+     */
+    private int[] elo() {
+        int[] starts = this.gameStarts();
+        int[] lastWave = new int[this.ids.size()];
+        int[] waves = new int[this.games];
+        int waveCount = 0;
+        for (int game = 0; game < this.games; game++) {
+            int start = starts[game];
+            int wave = 0;
+            for (int i = 1; i <= this.teams[start]; i++) {
+                wave = Math.max(wave, lastWave[this.teams[start + i]]);
+            }
+            for (int i = 1; i <= this.teams[start]; i++) {
+                lastWave[this.teams[start + i]] = wave + 1;
+            }
+            waves[game] = wave;
+            waveCount = Math.max(waveCount, wave + 1);
+        }
+
+        // orders the games by wave, keeping the order they ended in within each wave
+        int[] waveStarts = new int[waveCount + 1];
+        for (int wave : waves) {
+            waveStarts[wave + 1]++;
+        }
+        for (int wave = 0; wave < waveCount; wave++) {
+            waveStarts[wave + 1] += waveStarts[wave];
+        }
+        int[] order = new int[this.games];
+        int[] next = Arrays.copyOf(waveStarts, waveCount);
+        for (int game = 0; game < this.games; game++) {
+            order[next[waves[game]]++] = starts[game];
+        }
+
+        double[] ratings = new double[this.ids.size()];
+        Arrays.fill(ratings, ELO_INITIAL_RATING);
+        for (int wave = 0; wave < waveCount; wave++) {
+            EloTask task = new EloTask(order, ratings, waveStarts[wave], waveStarts[wave + 1]);
+            if (waveStarts[wave + 1] - waveStarts[wave] > GAMES_PER_TASK) {
+                this.pool.invoke(task);
+            } else {
+                // small waves are rated in this thread, since forking them would cost more than rating them
+                task.compute();
+            }
+        }
+
+        int[] rankings = new int[ratings.length];
+        for (int id = 0; id < ratings.length; id++) {
+            rankings[id] = (int) Math.round(ratings[id]);
+        }
+        return rankings;
+    }
+
+    /**
+     * Rates a range of games of the same wave, splitting it in halves while it is larger than a task.
+     */
+    private class EloTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] order;
+        private final double[] ratings;
+        private final int from;
+        private final int to;
+
+        EloTask(int[] order, double[] ratings, int from, int to) {
+            this.order = order;
+            this.ratings = ratings;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > GAMES_PER_TASK) {
+                int middle = (this.from + this.to) >>> 1;
+                RecursiveAction.invokeAll(new EloTask(this.order, this.ratings, this.from, middle), new EloTask(this.order, this.ratings, middle, this.to));
+                return;
+            }
+
+            int[] teams = RatingRecompute.this.teams;
+            double[] changes = new double[0];
+            for (int i = this.from; i < this.to; i++) {
+                int start = this.order[i];
+                int size = teams[start];
+                if (changes.length < size) {
+                    changes = new double[size];
+                }
+
+                // every player plays against every other, winning against those behind and losing against those ahead
+                Arrays.fill(changes, 0, size, 0);
+                for (int a = 0; a < size; a++) {
+                    for (int b = a + 1; b < size; b++) {
+                        double expected = 1 / (1 + Math.pow(10, (this.ratings[teams[start + 1 + b]] - this.ratings[teams[start + 1 + a]]) / 400));
+                        double change = ELO_K / (size - 1) * (1 - expected);
+                        changes[a] += change;
+                        changes[b] -= change;
+                    }
+                }
+                for (int a = 0; a < size; a++) {
+                    this.ratings[teams[start + 1 + a]] += changes[a];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the position of each game's team size in the teams
+     */
+    private int[] gameStarts() {
+        int[] starts = new int[this.games];
+        for (int game = 0, position = 0; game < this.games; game++) {
+            starts[game] = position;
+            position += this.teams[position] + 1;
+        }
+        return starts;
+    }
+
+    /**
+     * A growable list of primitive integers, which avoids boxing every id while decoding.
+     */
+    private static class IntList {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, 2 * this.size);
+            }
+            this.values[this.size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(this.values, this.size);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IntSummaryStatistics;
+
+public class Replay {
+    private static final long MATCHMAKING_INTERVAL = 1000; // matchmaking passes between events, as the live matchmaking threads wake up at least once per second
+    private static final long DRAIN_TIME = 3600000; // time given to the clients still waiting after the last event, in milliseconds
+
+    /**
+     * Clock whose time only moves when the replay advances it, so a trace runs faster than real time.
+     */
+    private static class ReplayClock extends Clock {
+        private long millis;
+
+        ReplayClock(long millis) {
+            this.millis = millis;
+        }
+
+        void set(long millis) {
+            this.millis = Math.max(this.millis, millis);
+        }
+
+        @Override
+        public long millis() {
+            return this.millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(this.millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+
+    private final ReplayClock clock;
+    private final Server server;
+    private final HashMap<Long, Player> players;
+    private final ArrayList<Long> waits;
+    private final ArrayList<Long> spreads;
+    private final ThreadMXBean threads;
+    private long endTime;
+    private long matchmakingCpuTime = 0;
+    private long matchmakingPasses = 0;
+
+    /**
+     * Constructs a new Replay object that runs an offline Server with a given matchmaking mode and number of players per game.
+     * @param startTime time when the trace started
+     * @param matchmakingMode simple or rank mode
+     * @param playersPerGame number of players to play a game
+     * @param layout lowest ranking of each shard's band of the live Server, used in rank mode
+     */
+    private Replay(long startTime, Server.MatchmakingMode matchmakingMode, int playersPerGame, int[] layout) {
+        this.clock = new ReplayClock(startTime);
+        this.players = new HashMap<>();
+        this.waits = new ArrayList<>();
+        this.spreads = new ArrayList<>();
+        this.threads = ManagementFactory.getThreadMXBean();
+
+        // games are not played: only the time each client waited until its team was formed and the team's ranking spread are kept
+        this.server = new Server(matchmakingMode, playersPerGame, layout, this.clock) {
+            @Override
+            void startGame(ArrayList<Client> clients) {
+                for (Client client : clients) {
+                    Replay.this.waits.add(Replay.this.clock.millis() - client.getQueueArrivalTime());
+                }
+
+                IntSummaryStatistics rankings = clients.stream().mapToInt((c) -> c.getPlayer().getRanking()).summaryStatistics();
+                Replay.this.spreads.add((long) rankings.getMax() - rankings.getMin());
+            }
+        };
+    }
+
+    /**
+     * Replays a trace recorded by a live Server through the offline matchmaking and reports wait times and matchmaking cost.
+     * @param args TRACE_FILE MATCHMAKING_MODE PLAYERS_PER_GAME
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.out.println("Usage: Replay <TRACE FILE> <MATCHMAKING MODE (0/1)> <PLAYERS PER GAME (>0)>");
+            return;
+        }
+
+        Server.MatchmakingMode matchmakingMode = Integer.parseInt(args[1]) == 0 ? Server.MatchmakingMode.SIMPLE : Server.MatchmakingMode.RANK;
+        int playersPerGame = Integer.parseInt(args[2]);
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+            if (input.readInt() != TraceRecorder.MAGIC) {
+                System.out.println("Invalid trace file: " + args[0] + ".");
+                return;
+            }
+
+            long startTime = input.readLong();
+            int[] layout = TraceRecorder.readLayout(input);
+            PrintStream out = System.out;
+            Replay replay = new Replay(startTime, matchmakingMode, playersPerGame, layout);
+
+            // the Server's own messages are discarded, so they do not mix with the report
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long wallTime = System.nanoTime();
+            ArrayList<Long> recordedWaits = replay.run(input, startTime);
+            wallTime = System.nanoTime() - wallTime;
+            System.setOut(out);
+
+            replay.report(recordedWaits, startTime, wallTime);
+        } catch (IOException e) {
+            System.out.println("Replay exception: " + e.getMessage() + ".");
+        }
+    }
+
+    /**
+     * Feeds every record of the trace to the offline Server, running matchmaking after each arrival and once per interval in between.
+     * @param input trace, positioned after its header
+     * @param startTime time when the trace started
+     * @return the wait times of the teams formed by the live Server, as recorded in the trace
+     * @throws IOException If an I/O error occurred
+     */
+    private ArrayList<Long> run(DataInputStream input, long startTime) throws IOException {
+        HashMap<Long, Long> arrivals = new HashMap<>();
+        ArrayList<Long> recordedWaits = new ArrayList<>();
+        long time = startTime;
+
+        while (true) {
+            byte type;
+            long[] fields;
+            try {
+                type = input.readByte();
+                time += TraceRecorder.readVarLong(input);
+                fields = Replay.readFields(input, type);
+            } catch (EOFException e) {
+                // the end of the trace, possibly cut in the middle of a record if the Server stopped abruptly
+                break;
+            }
+
+            this.advance(time);
+
+            switch (type) {
+                case TraceRecorder.ARRIVAL: {
+                    long id = fields[0];
+                    int ranking = (int) fields[1];
+                    arrivals.put(id, time);
+
+                    Player player = this.players.computeIfAbsent(id, (i) -> new Player("player" + i, "", ranking));
+                    player.incrementRanking(ranking - player.getRanking());
+
+                    Client client = new Client(null);
+                    client.setPlayer(player);
+                    client.setQueueArrivalTime(time);
+
+                    this.server.removeFromWaitingQueue(player);
+                    this.server.addToWaitingQueue(client);
+                    this.matchmakingPass();
+                    break;
+                }
+                case TraceRecorder.DISCONNECT: {
+                    Player player = this.players.get(fields[0]);
+                    if (player != null) {
+                        this.server.removeFromWaitingQueue(player);
+                    }
+                    break;
+                }
+                case TraceRecorder.MATCH: {
+                    for (long id : fields) {
+                        Long arrival = arrivals.remove(id);
+                        if (arrival != null) {
+                            recordedWaits.add(time - arrival);
+                        }
+                    }
+                    break;
+                }
+                case TraceRecorder.LAYOUT:
+                    // the live Server rebalanced its ranking bands
+                    this.server.rebalance(Arrays.stream(fields).mapToInt((minRanking) -> (int) minRanking).toArray());
+                    break;
+                default:
+                    // reconnections and results do not change the waiting queue
+                    break;
+            }
+        }
+
+        this.endTime = time;
+        this.advance(time + DRAIN_TIME);
+        return recordedWaits;
+    }
+
+    /**
+     * Reads the fields of a record, after its type and time, so a record cut in the middle is never applied.
+     * @param input trace, positioned after the record's time
+     * @param type type of the record
+     * @return the record's fields: the players' ids, followed by the ranking if the record has one, or the lowest ranking of each band
+     * @throws IOException If an I/O error occurred, the trace ended or the record type is unknown
+     */
+    private static long[] readFields(DataInputStream input, byte type) throws IOException {
+        int count;
+        switch (type) {
+            case TraceRecorder.ARRIVAL:
+            case TraceRecorder.RESULT:
+                count = 2;
+                break;
+            case TraceRecorder.DISCONNECT:
+            case TraceRecorder.RECONNECT:
+                count = 1;
+                break;
+            case TraceRecorder.MATCH:
+            case TraceRecorder.LAYOUT:
+                count = (int) TraceRecorder.readVarLong(input);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+
+        long[] fields = new long[count];
+        for (int i = 0; i < count; i++) {
+            fields[i] = TraceRecorder.readVarLong(input);
+        }
+        return fields;
+    }
+
+    /**
+     * Advances the clock to a given time, running a matchmaking pass every interval while there are clients waiting.
+     * @param time time to advance to
+     */
+    private void advance(long time) {
+        while (this.clock.millis() + MATCHMAKING_INTERVAL <= time && this.server.waitingQueueSize() > 0) {
+            this.clock.set(this.clock.millis() + MATCHMAKING_INTERVAL);
+            this.matchmakingPass();
+        }
+
+        this.clock.set(time);
+    }
+
+    /**
+     * Runs a matchmaking pass, measuring the CPU time it takes.
+     */
+    private void matchmakingPass() {
+        long start = this.threads.getCurrentThreadCpuTime();
+        this.server.matchmakingPass();
+        this.matchmakingCpuTime += this.threads.getCurrentThreadCpuTime() - start;
+        this.matchmakingPasses++;
+    }
+
+    /**
+     * Prints the wait time distributions of the replay and of the live Server, and the matchmaking cost.
+     * @param recordedWaits wait times recorded in the trace
+     * @param startTime time when the trace started
+     * @param wallTime real time the replay took, in nanoseconds
+     */
+    private void report(ArrayList<Long> recordedWaits, long startTime, long wallTime) {
+        long tracedTime = this.endTime - startTime;
+        System.out.println("Replayed " + tracedTime / 1000 + " seconds of traffic from " + this.players.size() + " players in " + wallTime / 1000000 + " milliseconds.");
+        System.out.println("Clients still waiting at the end: " + this.server.waitingQueueSize() + ".");
+        System.out.println("Recorded wait times: " + Replay.distribution(recordedWaits));
+        System.out.println("Replayed wait times: " + Replay.distribution(this.waits));
+        System.out.println("Replayed ranking spreads: " + Replay.distribution(this.spreads, "teams", ""));
+        System.out.println("Matchmaking passes: " + this.matchmakingPasses + ", CPU time: " + this.matchmakingCpuTime / 1000000 + " milliseconds ("
+                + (this.matchmakingPasses == 0 ? 0 : this.matchmakingCpuTime / this.matchmakingPasses / 1000) + " microseconds per pass).");
+    }
+
+    /**
+     * @param waits wait times, in milliseconds
+     * @return a summary of the distribution of the wait times
+     */
+    private static String distribution(ArrayList<Long> waits) {
+        return Replay.distribution(waits, "clients", " ms");
+    }
+
+    /**
+     * @param values measured values
+     * @param name name of what was measured
+     * @param unit unit of the values, with a leading space, or an empty string
+     * @return a summary of the distribution of the values
+     */
+    private static String distribution(ArrayList<Long> values, String name, String unit) {
+        if (values.isEmpty()) {
+            return "none.";
+        }
+
+        long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+        return sorted.length + " " + name + ", p50 " + Replay.percentile(sorted, 0.5) + unit + ", p90 " + Replay.percentile(sorted, 0.9)
+                + unit + ", p99 " + Replay.percentile(sorted, 0.99) + unit + ", max " + sorted[sorted.length - 1] + unit + ".";
+    }
+
+    /**
+     * @param sorted values sorted by ascending order
+     * @param percentile percentile between 0 and 1
+     * @return the value at the percentile
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.max((int) Math.ceil(percentile * sorted.length) - 1, 0)];
+    }
+}
@@ -3,10 +3,22 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.net.ssl.SSLContext;
+
 public class Server {
     /**
      * Two types of matchmaking: simple and rank.
@@ -18,58 +30,230 @@ public class Server {
 
     private final ServerSocket socket;
     private final Database database;
+    private final Corpus corpus;
     private final MatchmakingMode matchmakingMode;
     private final int playersPerGame;
 
-    private final ArrayList<Client> waitingQueue;
-    private final ReentrantLock waitingQueueLock;
+    private static final int RANKING_BAND_WIDTH = 20; // ranking points covered by each shard of the waiting queue in rank mode, while there are no players to split evenly
+    private static final long MATCHMAKING_INTERVAL = 1000; // maximum time between matchmaking passes, in milliseconds
+    private static final long REBALANCE_INTERVAL = 60000; // time between rebalances of the ranking bands of the waiting queue, in milliseconds
+    private static final long CHECKPOINT_INTERVAL = 5000; // minimum time between checkpoints of the waiting queue, in milliseconds
+    private static final long RESTORE_GRACE_PERIOD = 120000; // time the Clients of a checkpoint have to reconnect after a restart, in milliseconds
+    private static final int MAX_LISTED_GAMES = 10; // games shown to a Client who wants to watch one
+    private static final long SPECTATOR_WRITE_TIMEOUT = 10000; // maximum time a spectator may take to receive an event before being disconnected, in milliseconds
+    private static final long TOLERANCE_LOG_INTERVAL = 10000; // minimum time between logged changes of a shard's ranking difference, in milliseconds
+    private static final long DEFAULT_TARGET_WAIT = 60; // time within which every Client should be matched in rank mode, in seconds, unless typeracer.targetWait is set
+    private static final Comparator<Client> ARRIVAL_ORDER = Comparator.comparingLong(Client::getQueueArrivalTime); // order of the Clients in a shard in simple mode
+    private static final Comparator<Client> RANKING_ORDER = Comparator.comparingInt((Client c) -> c.getPlayer().getRanking()).thenComparing(ARRIVAL_ORDER); // order of the Clients in a shard in rank mode
+
+    private final QueueShard[] waitingQueue;
+    private final RankingDistribution distribution;
+    private long lastRebalanceTime = 0;
     private final ReentrantLock databaseLock;
-    private final ReentrantLock timeLock;
+    private final RankingUpdater rankings;
+
+    // the games being played, which Clients can watch, by number
+    private final ConcurrentHashMap<Integer, Game> games;
+    private final AtomicInteger gameNumber;
 
-    private int rankingDifference = 5;
-    private long lastUpdateTime = 0;
-    private long oldestCheckIfAliveTime = 0;
+    private final Clock clock;
+    private final TraceRecorder recorder;
+    private final GameHistory history;
+
+    private final Path checkpointFile;
+    private final ReentrantLock checkpointLock;
+    private final ConcurrentHashMap<String, QueueCheckpoint.Entry> restoredClients;
+    private long restoreDeadline = 0;
+    private volatile boolean checkpointPending = false;
 
     /**
-     * Constructs a new Server with a port number, a database file name, a matchmaking mode, and a number of players per game.
+     * Constructs a new Server with a port number, a database file name, a matchmaking mode, a number of players per game and a sentences file name.
      * @param port new Server's Socket port
      * @param databaseFile name of the Server's database file
      * @param matchmakingMode 0 if simple mode, 1 if rank mode
      * @param playersPerGame number of players to play a game
-     * @throws IOException If an I/O error occurred when creating the database
+     * @param sentencesFile name of the file with the sentences to write, one per line, or null to use the built-in sentences
+     * @throws IOException If an I/O error occurred when creating the database or loading the sentences
      */
-    public Server(int port, String databaseFile, int matchmakingMode, int playersPerGame) throws IOException {
-        this.socket = new ServerSocket();
+    public Server(int port, String databaseFile, int matchmakingMode, int playersPerGame, String sentencesFile) throws IOException {
+        // with a key store, the connections use TLS, so credentials and tokens never cross the network in plaintext
+        SSLContext tlsContext = Tls.serverContext();
+        this.socket = tlsContext == null ? new ServerSocket() : tlsContext.getServerSocketFactory().createServerSocket();
         this.socket.bind(new InetSocketAddress(port));
 
         this.database = new Database(databaseFile);
 
+        // the sentences are loaded only once and shared by every game
+        this.corpus = sentencesFile == null ? Corpus.defaults() : Corpus.load(sentencesFile);
+
         this.matchmakingMode = matchmakingMode == 0 ? MatchmakingMode.SIMPLE : MatchmakingMode.RANK;
 
         this.playersPerGame = playersPerGame;
 
-        this.waitingQueue = new ArrayList<>();
-        this.waitingQueueLock = new ReentrantLock();
+        // the ranking bands split the players evenly, starting from the rankings loaded from the database
+        this.distribution = new RankingDistribution();
+        this.database.forEachRanking(this.distribution::add);
+        int[] bands = Server.bands(this.matchmakingMode, this.distribution);
+        this.waitingQueue = Server.createShards(bands);
         this.databaseLock = new ReentrantLock();
-        this.timeLock = new ReentrantLock();
 
-        System.out.println("Server is listening on port " + port + ".");
+        // the rankings are only changed by the ranking thread, which saves them in batches
+        this.rankings = new RankingUpdater(this.database, this.databaseLock, this.distribution);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                this.rankings.close();
+            } catch (InterruptedException e) {
+                System.out.println("Ranking updater exception: " + e.getMessage() + ".");
+            }
+        }));
+
+        this.clock = Clock.systemUTC();
+
+        // the matchmaking events are recorded for offline replay when a trace file is configured
+        String traceFile = System.getProperty("typeracer.trace");
+        this.recorder = traceFile == null ? null : new TraceRecorder(traceFile, this.clock, Server.layout(this.waitingQueue));
+        if (this.recorder != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    this.recorder.close();
+                } catch (IOException e) {
+                    System.out.println("Trace exception: " + e.getMessage() + ".");
+                }
+            }));
+        }
+
+        // every finished game is appended to the history next to the database
+        this.history = new GameHistory(databaseFile + ".history");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                this.history.close();
+            } catch (IOException e) {
+                System.out.println("Game history exception: " + e.getMessage() + ".");
+            }
+        }));
+
+        // the waiting queue of the previous execution is restored, so its Clients can reconnect instead of logging in again
+        this.checkpointFile = Path.of(databaseFile + ".queue");
+        this.checkpointLock = new ReentrantLock();
+        this.restoredClients = new ConcurrentHashMap<>();
+        this.games = new ConcurrentHashMap<>();
+        this.gameNumber = new AtomicInteger();
+        this.restore();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::checkpoint));
+
+        System.out.println("Server is listening on port " + port + (tlsContext == null ? "." : " with " + Tls.PROTOCOL + "."));
+        if (traceFile != null) {
+            System.out.println("The matchmaking events are being recorded on the file " + traceFile + ".");
+        }
         System.out.println("The database is being stored on the file " + databaseFile + ".");
+        if (sentencesFile != null) {
+            System.out.println("Loaded " + this.corpus.size() + " sentences from the file " + sentencesFile + ".");
+        }
 
         if (this.matchmakingMode == MatchmakingMode.SIMPLE) {
             System.out.println("Starting simple mode matchmaking with teams of " + playersPerGame + " players.\n");
         } else {
-            System.out.println("Starting rank mode matchmaking with an initial ranking difference of " + this.rankingDifference + " and teams of " + playersPerGame + " players.\n");
+            System.out.println("Starting rank mode matchmaking with an initial ranking difference of " + QueueShard.INITIAL_RANKING_DIFFERENCE + ", " + this.waitingQueue.length + " ranking bands (" + Server.describe(bands) + ") and teams of " + playersPerGame + " players.\n");
         }
     }
 
     /**
-     * Runs a new Server object, connecting it to a socket with a given port, database stored in a given file, a matchmaking mode and a number of players per game.
-     * @param args PORT DATABASE_FILE MATCHMAKING_MODE PLAYERS_PER_GAME
+     * Constructs a new Server without a socket nor a database, to run matchmaking offline with a given clock.
+     * Games are not played: subclasses decide what to do with the teams formed by overriding startGame.
+     * @param matchmakingMode simple or rank mode
+     * @param playersPerGame number of players to play a game
+     * @param bands lowest ranking of each shard's band, in ascending order, starting at 0
+     * @param clock clock used by matchmaking
+     */
+    Server(MatchmakingMode matchmakingMode, int playersPerGame, int[] bands, Clock clock) {
+        this.socket = null;
+        this.database = null;
+        this.corpus = Corpus.defaults();
+        this.matchmakingMode = matchmakingMode;
+        this.playersPerGame = playersPerGame;
+        this.distribution = null;
+        this.waitingQueue = Server.createShards(matchmakingMode == MatchmakingMode.SIMPLE ? new int[] {0} : bands);
+        this.databaseLock = new ReentrantLock();
+        this.rankings = null;
+        this.clock = clock;
+        this.recorder = null;
+        this.history = null;
+        this.checkpointFile = null;
+        this.checkpointLock = new ReentrantLock();
+        this.restoredClients = new ConcurrentHashMap<>();
+        this.games = new ConcurrentHashMap<>();
+        this.gameNumber = new AtomicInteger();
+    }
+
+    /**
+     * Computes the ranking bands of the waiting queue.
+     * In rank mode, the waiting queue is split into ranking bands, one per core, each matched independently.
+     * The bands are quantiles of the players' rankings, so each one holds about the same number of players; fixed-width
+     * bands are only used while there are no players.
+     * @param matchmakingMode simple or rank mode
+     * @param distribution rankings of every player
+     * @return the lowest ranking of each band, in ascending order
+     */
+    private static int[] bands(MatchmakingMode matchmakingMode, RankingDistribution distribution) {
+        int shards = matchmakingMode == MatchmakingMode.SIMPLE ? 1 : Runtime.getRuntime().availableProcessors();
+        int[] bands = distribution.quantiles(shards);
+        if (bands == null) {
+            bands = new int[shards];
+            for (int i = 0; i < shards; i++) {
+                bands[i] = i * RANKING_BAND_WIDTH;
+            }
+        }
+
+        return bands;
+    }
+
+    /**
+     * Creates the shards of the waiting queue, one per ranking band. The last band has no upper limit.
+     * @param bands lowest ranking of each band, in ascending order, starting at 0
+     * @return the shards, ordered by ranking band
+     */
+    private static QueueShard[] createShards(int[] bands) {
+        long targetWait = Long.getLong("typeracer.targetWait", DEFAULT_TARGET_WAIT) * 1000;
+        QueueShard[] waitingQueue = new QueueShard[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            int maxRanking = i == bands.length - 1 ? Integer.MAX_VALUE : bands[i + 1] - 1;
+            waitingQueue[i] = new QueueShard(bands[i], maxRanking, targetWait);
+        }
+
+        return waitingQueue;
+    }
+
+    /**
+     * @param bands lowest ranking of each band, in ascending order
+     * @return the bands as ranges of rankings, for the log
+     */
+    private static String describe(int[] bands) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < bands.length; i++) {
+            description.append(i == 0 ? "" : ", ").append(bands[i]).append(i == bands.length - 1 ? "+" : "-" + (bands[i + 1] - 1));
+        }
+        return description.toString();
+    }
+
+    /**
+     * @param waitingQueue shards of the waiting queue
+     * @return the lowest ranking of each shard's band, in ascending order, which a trace records so it is replayed with the same shards
+     */
+    private static int[] layout(QueueShard[] waitingQueue) {
+        int[] layout = new int[waitingQueue.length];
+        for (int i = 0; i < waitingQueue.length; i++) {
+            layout[i] = waitingQueue[i].getMinRanking();
+        }
+        return layout;
+    }
+
+    /**
+     * Runs a new Server object, connecting it to a socket with a given port, database stored in a given file, a matchmaking mode, a number of players per game and, optionally, a sentences file.
+     * @param args PORT DATABASE_FILE MATCHMAKING_MODE PLAYERS_PER_GAME [SENTENCES_FILE]
      */
     public static void main(String[] args) {
-        if (args.length != 4) {
-            System.out.println("Usage: Server <PORT (>0)> <DATABASE FILE: (*.csv)> <MATCHMAKING MODE (0/1)> <PLAYERS PER GAME (>0)>");
+        if (args.length != 4 && args.length != 5) {
+            System.out.println("Usage: Server <PORT (>0)> <DATABASE FILE: (*.csv/*.db)> <MATCHMAKING MODE (0/1)> <PLAYERS PER GAME (>0)> [SENTENCES FILE]");
             return;
         }
 
@@ -80,8 +264,8 @@ public class Server {
         }
 
         String databaseFile = args[1];
-        if (!databaseFile.endsWith(".csv")) {
-            System.out.println("Invalid database file: " + databaseFile + ". The database file must end with .csv.");
+        if (!databaseFile.endsWith(".csv") && !databaseFile.endsWith(".db")) {
+            System.out.println("Invalid database file: " + databaseFile + ". The database file must end with .csv or .db.");
             return;
         }
 
@@ -97,8 +281,10 @@ public class Server {
             return;
         }
 
+        String sentencesFile = args.length == 5 ? args[4] : null;
+
         try {
-            Server server = new Server(port, databaseFile, matchmakingMode, playersPerGame);
+            Server server = new Server(port, databaseFile, matchmakingMode, playersPerGame, sentencesFile);
             server.execute();
         } catch (IOException | InterruptedException e) {
             System.out.println("Server exception: " + e.getMessage());
@@ -106,7 +292,8 @@ public class Server {
     }
 
     /**
-     * Executes this Server by starting the authentication and matchmaking threads and waiting for them to finish.
+     * Executes this Server by starting the authentication thread, one matchmaking thread per shard of the waiting queue
+     * and, in rank mode with several shards, the overflow thread that matches players across shards, and waiting for them to finish.
      * @throws InterruptedException If either the matchmaking or the authentication thread is interrupted
      */
     public void execute() throws InterruptedException {
@@ -128,19 +315,355 @@ public class Server {
             }
         });
 
-        Thread matchmakingThread = Thread.ofVirtual().start(() -> {
-            while (!Thread.interrupted()) {
-                this.checkIfAlive();
-                if (this.matchmakingMode == MatchmakingMode.SIMPLE) {
-                    this.simpleModeMatchmaking();
-                } else {
-                    this.rankModeMatchmaking();
+        ArrayList<Thread> matchmakingThreads = new ArrayList<>();
+        for (QueueShard shard : this.waitingQueue) {
+            matchmakingThreads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    while (!Thread.interrupted()) {
+                        this.checkIfAlive(shard);
+                        if (this.matchmakingMode == MatchmakingMode.SIMPLE) {
+                            this.simpleModeMatchmaking(shard);
+                        } else {
+                            this.rankModeMatchmaking(shard);
+                        }
+                        // waits for a new client instead of spinning, but still wakes up to widen the ranking difference
+                        shard.awaitChange(MATCHMAKING_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("Matchmaking thread interrupted.");
+                }
+            }));
+        }
+
+        if (this.waitingQueue.length > 1) {
+            matchmakingThreads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    while (!Thread.interrupted()) {
+                        this.overflowMatchmaking();
+                        if (this.clock.millis() - this.lastRebalanceTime >= REBALANCE_INTERVAL) {
+                            // the rankings change as games are played, so the bands follow them
+                            this.rebalance(Server.bands(this.matchmakingMode, this.distribution));
+                        }
+                        Thread.sleep(MATCHMAKING_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("Overflow matchmaking thread interrupted.");
+                }
+            }));
+        }
+
+        Thread checkpointThread = Thread.ofVirtual().start(() -> {
+            try {
+                while (!Thread.interrupted()) {
+                    Thread.sleep(CHECKPOINT_INTERVAL);
+                    if (this.checkpointPending) {
+                        this.checkpoint();
+                    }
+                    this.history.flush(this.clock.millis());
+                    if (this.recorder != null) {
+                        // an idle Server records nothing, so its last records are flushed here
+                        this.recorder.flush();
+                    }
                 }
+            } catch (InterruptedException e) {
+                System.out.println("Checkpoint thread interrupted.");
             }
         });
 
         authenticationThread.join();
-        matchmakingThread.join();
+        for (Thread matchmakingThread : matchmakingThreads) {
+            matchmakingThread.join();
+        }
+        checkpointThread.join();
+    }
+
+    /**
+     * Writes a checkpoint of the waiting queue, with each Client's token and arrival time.
+     * Also forgets the restored Clients that did not reconnect within the grace period.
+     * The checkpoint thread and the shutdown hook both write checkpoints, so only one of them writes the file at a time.
+     */
+    private void checkpoint() {
+        this.checkpointLock.lock();
+        try {
+            if (!this.restoredClients.isEmpty() && this.clock.millis() > this.restoreDeadline) {
+                System.out.println(this.restoredClients.size() + " clients did not reconnect after the restart and were removed from the waiting queue.");
+                this.restoredClients.clear();
+            }
+
+            this.checkpointPending = false;
+            try {
+                QueueCheckpoint.write(this.checkpointFile, this.waitingQueue, this.restoredClients.values(), this.clock.millis());
+            } catch (IOException e) {
+                this.checkpointPending = true;
+                System.out.println("The waiting queue could not be checkpointed: " + e.getMessage() + ". Trying again later.");
+            }
+        } finally {
+            this.checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Restores the waiting queue from the last checkpoint, if it is recent enough.
+     * The Clients are not added to the waiting queue until they reconnect with their token, which must happen within the grace period.
+     */
+    private void restore() {
+        try {
+            QueueCheckpoint checkpoint = QueueCheckpoint.read(this.checkpointFile);
+            long currentTime = this.clock.millis();
+            if (checkpoint == null || currentTime - checkpoint.getTime() > RESTORE_GRACE_PERIOD) {
+                return;
+            }
+
+            for (QueueCheckpoint.Entry entry : checkpoint.getEntries()) {
+                this.restoredClients.put(entry.token, entry);
+            }
+            this.restoreDeadline = currentTime + RESTORE_GRACE_PERIOD;
+
+            System.out.println("Restored " + this.restoredClients.size() + " clients from the last checkpoint of the waiting queue. They have " + RESTORE_GRACE_PERIOD / 1000 + " seconds to reconnect.");
+        } catch (IOException e) {
+            System.out.println("The waiting queue could not be restored: " + e.getMessage() + ".");
+        }
+    }
+
+    /**
+     * Puts a Client back in its position of the waiting queue from before the restart, if its token belongs to a restored Client.
+     * The Player is found by username, so the Client does not need to authenticate again.
+     * @param client the Client reconnecting
+     * @param token the token provided by the Client
+     */
+    private void reclaim(Client client, String token) {
+        QueueCheckpoint.Entry entry = this.restoredClients.remove(token);
+        if (entry == null || this.clock.millis() > this.restoreDeadline) {
+            return;
+        }
+
+        Player player;
+        Events.lock(this.databaseLock, "databaseLock");
+        try {
+            player = this.database.getPlayer(entry.username);
+        } catch (IOException e) {
+            System.out.println("Reclaim exception: " + e.getMessage() + ".");
+            return;
+        } finally {
+            this.databaseLock.unlock();
+        }
+
+        if (player == null) {
+            return;
+        }
+
+        QueueShard shard = this.lockShardOf(player);
+        try {
+            if (shard.getClients().stream().anyMatch((c) -> c.getPlayer().equals(player))) {
+                // the Player logged in again after the restart, so it already has a new position
+                return;
+            }
+
+            player.restoreToken(entry.token);
+            this.database.pin(player);
+            client.setPlayer(player);
+            client.setQueueArrivalTime(entry.queueArrivalTime);
+            this.addToShard(shard, client);
+        } finally {
+            shard.unlock();
+        }
+
+        System.out.println("Client " + player.getUsername() + " reclaimed its position in the waiting queue after the restart.");
+    }
+
+    /**
+     * @param player a Player
+     * @return the shard of the waiting queue whose ranking band includes the Player's ranking
+     */
+    private QueueShard shardOf(Player player) {
+        return this.shardOf(player.getRanking());
+    }
+
+    /**
+     * @param ranking a ranking
+     * @return the shard of the waiting queue whose ranking band includes the ranking
+     */
+    private QueueShard shardOf(int ranking) {
+        int shard = this.waitingQueue.length - 1;
+        while (shard > 0 && ranking < this.waitingQueue[shard].getMinRanking()) {
+            shard--;
+        }
+        return this.waitingQueue[shard];
+    }
+
+    /**
+     * Locks the shard of the waiting queue whose ranking band includes a Player's ranking. If the bands are rebalanced
+     * between finding the shard and locking it, the Player's new shard is locked instead.
+     * @param player a Player
+     * @return the locked shard
+     */
+    private QueueShard lockShardOf(Player player) {
+        while (true) {
+            QueueShard shard = this.shardOf(player);
+            shard.lock();
+            if (this.shardOf(player) == shard) {
+                return shard;
+            }
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Moves the boundaries of the ranking bands, so each shard keeps about the same share of the players as their rankings change.
+     * Every shard is locked, in order, while the bands change and the Clients move to their new shards, so a Client is never
+     * matched or added while its band is changing.
+     * @param bands lowest ranking of each band, in ascending order, starting at 0
+     */
+    void rebalance(int[] bands) {
+        this.lastRebalanceTime = this.clock.millis();
+        if (bands.length != this.waitingQueue.length || Arrays.equals(bands, Server.layout(this.waitingQueue))) {
+            return;
+        }
+
+        int moved = 0;
+        for (QueueShard shard : this.waitingQueue) {
+            shard.lock();
+        }
+        try {
+            ArrayList<ArrayList<Client>> previous = new ArrayList<>();
+            for (int i = 0; i < bands.length; i++) {
+                QueueShard shard = this.waitingQueue[i];
+                previous.add(new ArrayList<>(shard.getClients()));
+                shard.getClients().clear();
+                shard.setBand(bands[i], i == bands.length - 1 ? Integer.MAX_VALUE : bands[i + 1] - 1);
+            }
+
+            for (int i = 0; i < bands.length; i++) {
+                for (Client client : previous.get(i)) {
+                    QueueShard shard = this.shardOf(client.getPlayer());
+                    if (shard != this.waitingQueue[i]) {
+                        moved++;
+                    }
+                    shard.getClients().add(client);
+                }
+            }
+
+            for (int i = 0; i < bands.length; i++) {
+                // the Clients keep the shards' order in their new shards
+                QueueShard shard = this.waitingQueue[i];
+                ArrayList<Client> clients = shard.getClients();
+                clients.sort(this.queueOrder());
+                if (!clients.isEmpty() && previous.get(i).isEmpty()) {
+                    shard.setLastCheckIfAliveTime(clients.stream().mapToLong(Client::getQueueArrivalTime).min().getAsLong());
+                }
+                shard.signalChange();
+            }
+        } finally {
+            for (int i = this.waitingQueue.length - 1; i >= 0; i--) {
+                this.waitingQueue[i].unlock();
+            }
+        }
+
+        if (this.recorder != null) {
+            this.recorder.layout(bands);
+        }
+        this.checkpointPending = true;
+        System.out.println("Rebalanced the ranking bands to " + Server.describe(bands) + ", moving " + moved + " clients.");
+    }
+
+    /**
+     * @return the order the Clients of each shard are kept in: by arrival in simple mode, and by ranking in rank mode, as the matchmaking sweeps them
+     */
+    private Comparator<Client> queueOrder() {
+        return this.matchmakingMode == MatchmakingMode.SIMPLE ? ARRIVAL_ORDER : RANKING_ORDER;
+    }
+
+    /**
+     * Adds a Client to its shard of the waiting queue, in the shard's order. Must be called while holding the shard's lock.
+     * In simple mode, new Clients go to the end, while Clients restored after a restart go back to their previous position.
+     * @param shard the Client's shard
+     * @param client the Client to add
+     */
+    private void addToShard(QueueShard shard, Client client) {
+        ArrayList<Client> clients = shard.getClients();
+        if (clients.isEmpty()) {
+            shard.setLastCheckIfAliveTime(client.getQueueArrivalTime());
+        }
+
+        int position = Collections.binarySearch(clients, client, this.queueOrder());
+        clients.add(position < 0 ? -position - 1 : position, client);
+        shard.getController().recordArrival(this.clock.millis());
+        shard.signalChange();
+        this.checkpointPending = true;
+
+        if (this.recorder != null) {
+            this.recorder.arrival(client.getPlayer());
+        }
+    }
+
+    /**
+     * Adds a Client to the waiting queue, without any message. Used to replay arrivals offline.
+     * @param client the Client to add
+     */
+    void addToWaitingQueue(Client client) {
+        QueueShard shard = this.lockShardOf(client.getPlayer());
+        try {
+            this.addToShard(shard, client);
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Removes a Player from the waiting queue, if it is waiting. Used to replay disconnections offline.
+     * @param player the Player to remove
+     * @return true if the Player was waiting; false if otherwise
+     */
+    boolean removeFromWaitingQueue(Player player) {
+        QueueShard shard = this.lockShardOf(player);
+        try {
+            this.checkpointPending = true;
+            return shard.getClients().removeIf((c) -> c.getPlayer().equals(player));
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * @return the port this Server is listening on
+     */
+    int getPort() {
+        return this.socket.getLocalPort();
+    }
+
+    /**
+     * @return the number of Clients in the waiting queue
+     */
+    int waitingQueueSize() {
+        int size = 0;
+        for (QueueShard shard : this.waitingQueue) {
+            shard.lock();
+            try {
+                size += shard.getClients().size();
+            } finally {
+                shard.unlock();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Runs one matchmaking pass over every shard of the waiting queue, in the calling thread.
+     * Used to replay matchmaking offline, where the matchmaking threads are not started.
+     */
+    void matchmakingPass() {
+        for (QueueShard shard : this.waitingQueue) {
+            if (this.matchmakingMode == MatchmakingMode.SIMPLE) {
+                this.simpleModeMatchmaking(shard);
+            } else {
+                this.rankModeMatchmaking(shard);
+            }
+        }
+
+        if (this.waitingQueue.length > 1) {
+            this.overflowMatchmaking();
+        }
     }
 
     /**
@@ -149,7 +672,25 @@ public class Server {
      * @throws IOException If the Client disconnected while in the menu
      */
     private void dealWithClient(Socket socket) throws IOException {
-        Client client = new Client(socket);
+        Events.ClientSession event = new Events.ClientSession();
+        event.begin();
+        event.outcome = "disconnected";
+        try {
+            // the TLS handshake is done here, in the Client's own thread, so it never delays the accept loop
+            Tls.handshake(socket);
+            this.dealWithClient(new Client(socket), event);
+        } finally {
+            event.commit();
+        }
+    }
+
+    /**
+     * Shows the menu to a new Client until it is authenticated or reconnected.
+     * @param client the new Client
+     * @param event the Client's session event, completed with its username and outcome
+     * @throws IOException If the Client disconnected while in the menu
+     */
+    private void dealWithClient(Client client, Events.ClientSession event) throws IOException {
         boolean reconnection = false;
 
         client.sendMessage("--------------------------------------------------------------------");
@@ -157,35 +698,44 @@ public class Server {
         client.sendMessage("--------------------------------------------------------------------");
 
         while (!client.hasPlayer()) {
-            client.sendMessage("Menu\nLOG: Login\nREG: Register\nREC: Reconnect\nEND");
+            client.sendMessage("Menu\nLOG: Login\nREG: Register\nREC: Reconnect\nSPE: Spectate\nEND");
             String response = client.receiveMessage().toUpperCase();
 
             switch (response) {
                 case "LOG":
-                    client = this.authentication(socket, true);
+                    client = this.authentication(client, true);
                     reconnection = false;
                     break;
                 case "REG":
-                    client = this.authentication(socket, false);
+                    client = this.authentication(client, false);
                     reconnection = false;
                     break;
                 case "REC":
-                    client = this.reconnect(socket);
+                    client = this.reconnect(client);
                     reconnection = true;
                     break;
+                case "SPE":
+                    this.spectate(client);
+                    break;
                 default:
                     client.sendMessage("The selected option does not exist.");
                     break;
             }
         }
 
+        event.username = client.getPlayer().getUsername();
         if (reconnection) {
+            event.outcome = "reconnected";
             client.sendMessage("You reentered the waiting queue with ranking " + client.getPlayer().getRanking() + ".\nIn case the connection breaks, your token to reconnect is \"" + client.getPlayer().getToken() + "\".\nEND");
             System.out.println("Client " + client.getPlayer().getUsername() + " reconnected.");
+            if (this.recorder != null) {
+                this.recorder.reconnect(client.getPlayer());
+            }
             return;
         }
 
         dealWithWaitingQueue(client);
+        event.outcome = "queued";
     }
 
     /**
@@ -194,50 +744,61 @@ public class Server {
      * @throws IOException If the Client disconnected while in the process of being added to the waiting queue
      */
     private void dealWithWaitingQueue(Client client) throws IOException {
+        Events.WaitingQueue event = new Events.WaitingQueue();
+        event.begin();
+        event.username = client.getPlayer().getUsername();
+        event.ranking = client.getPlayer().getRanking();
+
         StringBuilder queue = new StringBuilder();
-        this.waitingQueueLock.lock();
+        // a Player's ranking does not change while waiting, so the Player can only be queued in this shard
+        QueueShard shard = this.lockShardOf(client.getPlayer());
         try {
-            if (this.waitingQueue.stream().anyMatch((c) -> c.equals(client))) {
+            if (shard.getClients().stream().anyMatch((c) -> c.equals(client))) {
+                this.database.unpin(client.getPlayer());
                 client.sendMessage("You are already in the waiting queue.\nEND");
                 client.getSocket().close();
                 return;
             }
 
-            if (this.waitingQueue.isEmpty()) {
-                this.lastUpdateTime = client.getQueueArrivalTime();
-                this.oldestCheckIfAliveTime = client.getQueueArrivalTime();
-            }
-
-            this.waitingQueue.add(client);
+            // the message is enqueued before the client can be matched, so it always arrives before the game starts
+            client.enqueueMessage(Client.encode("You entered the waiting queue with ranking " + client.getPlayer().getRanking() + ".\nIn case the connection breaks, your token to reconnect is \"" + client.getPlayer().getToken() + "\".\nEND"));
+            this.addToShard(shard, client);
+            event.waiting = shard.getClients().size();
 
-            for (int i = 0; i < this.waitingQueue.size(); i++) {
-                Player player = this.waitingQueue.get(i).getPlayer();
+            for (int i = 0; i < shard.getClients().size(); i++) {
+                Player player = shard.getClients().get(i).getPlayer();
                 queue.append(i + 1).append(". ").append(player.getUsername()).append(" (ranking: ").append(player.getRanking()).append(")\n");
             }
         } finally {
-            this.waitingQueueLock.unlock();
+            shard.unlock();
         }
 
-        client.sendMessage("You entered the waiting queue with ranking " + client.getPlayer().getRanking() + ".\nIn case the connection breaks, your token to reconnect is \"" + client.getPlayer().getToken() + "\".\nEND");
+        event.commit();
         System.out.println("Queue:\n" + queue);
     }
 
     /**
      * Authenticates a Client, either by logging in or registering a new account, and sets up the Client's Player details.
-     * @param socket the Client's socket channel
+     * @param client the Client with only a socket channel
      * @param isLogin true if the Client is logging in, false if it is registering a new account
      * @return the authenticated Client
      * @throws IOException If an I/O error occurred when creating the database or the Client disconnected while in the authentication process
      */
-    private Client authentication(Socket socket, boolean isLogin) throws IOException {
-        // creates a client with only a socket
-        Client client = new Client(socket);
+    private Client authentication(Client client, boolean isLogin) throws IOException {
         client.sendMessage("Enter your username!\nEND");
         String username = client.receiveMessage();
         client.sendMessage("Enter your password!\nEND");
         String password = client.receiveMessage();
 
-        this.databaseLock.lock();
+        // the disk database stores usernames in fixed-size slots, so longer ones are refused in every storage mode
+        if (!isLogin && username.getBytes(StandardCharsets.UTF_8).length > PlayerStore.USERNAME_CAPACITY) {
+            client.sendMessage("Username is too long. It must have at most " + PlayerStore.USERNAME_CAPACITY + " bytes.\n");
+            return client;
+        }
+
+        Events.Authentication event = new Events.Authentication();
+        event.begin();
+        Events.lock(this.databaseLock, "databaseLock");
         try {
             Player player;
 
@@ -245,19 +806,38 @@ public class Server {
                 player = this.database.login(username, password);
             } else {
                 player = this.database.register(username, password);
+                if (player != null) {
+                    this.distribution.add(player.getRanking());
+                }
+            }
+
+            if (player != null) {
+                // keeps the player in memory while it is in the waiting queue or in a game
+                this.database.pin(player);
             }
 
             // associates the player and the time he arrived to queue with the previously created client
             client.setPlayer(player);
-            client.setQueueArrivalTime(System.currentTimeMillis());
+            client.setQueueArrivalTime(this.clock.millis());
         } catch (NoSuchAlgorithmException e) {
             System.out.println("Authentication exception: " + e.getMessage() + ".");
         } finally {
             this.databaseLock.unlock();
         }
 
+        event.username = username;
+        event.login = isLogin;
+        event.successful = client.hasPlayer();
+        event.commit();
+
         if (client.hasPlayer()) {
-            client.sendMessage("Authentication successful.\nEND");
+            try {
+                client.sendMessage("Authentication successful.\nEND");
+            } catch (IOException e) {
+                // the Client never reaches the waiting queue, so it must not stay pinned
+                this.database.unpin(client.getPlayer());
+                throw e;
+            }
         } else {
             if (isLogin) {
                 client.sendMessage("The provided credentials do not match our records.\n");
@@ -271,30 +851,47 @@ public class Server {
 
     /**
      * Reconnects a Client to this Server using a previously generated token.
-     * @param socket the Client's socket channel
+     * @param client the Client with only a socket channel
      * @return the reconnected Client
      * @throws IOException If the Client disconnected while in the reconnection process
      */
-    private Client reconnect(Socket socket) throws IOException {
-        Client client = new Client(socket);
+    private Client reconnect(Client client) throws IOException {
         client.sendMessage("Enter your token!\nEND");
         String token = client.receiveMessage();
 
-        this.waitingQueueLock.lock();
-        try {
-            for (Client c : this.waitingQueue) {
-                if (c.getPlayer().getToken().equals(token)) {
-                    // the token is correct and belongs to a client already in the waiting queue
-                    c.getSocket().close();
-                    c.setSocket(socket);
-                    client.setPlayer(c.getPlayer());
-                    break;
+        Events.Reconnect event = new Events.Reconnect();
+        event.begin();
+
+        // the token does not tell the Player's ranking, so every shard is searched
+        for (QueueShard shard : this.waitingQueue) {
+            shard.lock();
+            try {
+                for (Client c : shard.getClients()) {
+                    if (c.getPlayer().getToken().equals(token)) {
+                        // the token is correct and belongs to a client already in the waiting queue
+                        c.takeConnection(client);
+                        client.setPlayer(c.getPlayer());
+                        break;
+                    }
                 }
+            } finally {
+                shard.unlock();
             }
-        } finally {
-            this.waitingQueueLock.unlock();
+
+            if (client.hasPlayer()) {
+                break;
+            }
+        }
+
+        if (!client.hasPlayer()) {
+            // the token may belong to a Client who was waiting before the Server restarted
+            this.reclaim(client, token);
         }
 
+        event.successful = client.hasPlayer();
+        event.username = client.hasPlayer() ? client.getPlayer().getUsername() : null;
+        event.commit();
+
         if (client.hasPlayer()) {
             client.sendMessage("Reconnect successful.\nEND");
         } else {
@@ -305,179 +902,409 @@ public class Server {
     }
 
     /**
-     * Checks if the Clients in the waiting queue are still connected to this Server and removes those who are not.
+     * Lets a Client watch one of the games being played, chosen from those of the highest ranked teams, until the game ends.
+     * The Client follows the game's stream in its own thread, so a slow spectator falls behind and skips events instead of delaying the game.
+     * @param client the Client, who is not authenticated
+     * @throws IOException If the Client disconnected while choosing or watching the game
      */
-    private void checkIfAlive() {
-        long currentTime = System.currentTimeMillis();
-        long checkIfAliveFrequency = 30000; // 30 seconds
-        if (this.oldestCheckIfAliveTime > 0 && currentTime - this.oldestCheckIfAliveTime > checkIfAliveFrequency) {
-            // if 30 seconds passed, checks if all clients are alive (connected)
-            this.waitingQueueLock.lock();
+    private void spectate(Client client) throws IOException {
+        List<Map.Entry<Integer, Game>> games = this.games.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<Integer, Game> e) -> e.getValue().getAverageRanking()).reversed())
+                .limit(MAX_LISTED_GAMES)
+                .toList();
+        if (games.isEmpty()) {
+            client.sendMessage("There are no games being played.\n");
+            return;
+        }
 
-            try {
-                for (int i = 0; i < this.waitingQueue.size(); ) {
-                    Client client = this.waitingQueue.get(i);
+        StringBuilder list = new StringBuilder("Games being played:\n");
+        for (Map.Entry<Integer, Game> entry : games) {
+            Game game = entry.getValue();
+            list.append(entry.getKey()).append(". ").append(game.getTeam()).append(" (ranking: ").append(game.getAverageRanking())
+                    .append(", spectators: ").append(game.getStream().getSpectators()).append(")\n");
+        }
+        client.sendMessage(list + "Enter the number of the game to watch!\nEND");
+
+        Game game;
+        try {
+            game = this.games.get(Integer.parseInt(client.receiveMessage().trim()));
+        } catch (NumberFormatException e) {
+            game = null;
+        }
+        if (game == null) {
+            client.sendMessage("The selected game does not exist or has already ended.\n");
+            return;
+        }
+
+        Events.Spectate event = new Events.Spectate();
+        event.begin();
+        event.team = game.getTeam();
+
+        GameStream.Cursor cursor = game.getStream().subscribe();
+        // a spectator who stops reading is disconnected, so it does not keep its thread and cursor until the game ends
+        Thread watchdog = client.watchWrites(SPECTATOR_WRITE_TIMEOUT);
+        try {
+            client.sendMessage("You are watching the game of the team: " + game.getTeam() + ".\nEND");
+
+            // each event is written as it was encoded by the game, without copying it for this Client
+            ByteBuffer message;
+            long skipped = 0;
+            while ((message = cursor.next()) != null) {
+                if (cursor.getSkipped() > skipped) {
+                    client.sendMessage(Client.encode("You fell behind the game and skipped " + (cursor.getSkipped() - skipped) + " events.\nEND"));
+                    skipped = cursor.getSkipped();
+                }
+                client.sendMessage(message);
+                event.events++;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Spectator interrupted.");
+        } finally {
+            watchdog.interrupt();
+            cursor.close();
+            event.skipped = cursor.getSkipped();
+            event.commit();
+        }
+    }
+
+    /**
+     * Checks if the Clients in a shard of the waiting queue are still connected to this Server and removes those who are not.
+     * @param shard the shard to check
+     */
+    private void checkIfAlive(QueueShard shard) {
+        long currentTime = this.clock.millis();
+        long checkIfAliveFrequency = 30000; // 30 seconds
+        shard.lock();
+        try {
+            if (shard.getLastCheckIfAliveTime() > 0 && currentTime - shard.getLastCheckIfAliveTime() > checkIfAliveFrequency) {
+                // if 30 seconds passed, checks if all clients are alive (connected)
+                ArrayList<Client> clients = shard.getClients();
+                for (int i = 0; i < clients.size(); ) {
+                    Client client = clients.get(i);
                     try {
                         client.sendMessage("Checking if you are alive...\nEND");
                         System.out.println("Client " + client.getPlayer().getUsername() + " is alive.");
                         i++;
                     } catch (IOException e) {
                         System.out.println("Client " + client.getPlayer().getUsername() + " is not alive and will be removed from the waiting queue.");
-                        this.waitingQueue.remove(i);
+                        this.database.unpin(client.getPlayer());
+                        clients.remove(i);
+                        this.checkpointPending = true;
+                        if (this.recorder != null) {
+                            this.recorder.disconnect(client.getPlayer());
+                        }
                     }
                 }
-                this.oldestCheckIfAliveTime = currentTime;
-            } finally {
-                this.waitingQueueLock.unlock();
+                shard.setLastCheckIfAliveTime(clients.isEmpty() ? 0 : currentTime);
             }
+        } finally {
+            shard.unlock();
         }
     }
 
     /**
-     * Handles matchmaking in simple mode by grouping clients into teams if enough clients are available.
+     * Handles matchmaking in simple mode by grouping clients into teams, by order of arrival, while enough clients are available.
+     * @param shard the waiting queue's only shard
      */
-    private void simpleModeMatchmaking() {
-        this.waitingQueueLock.lock();
+    void simpleModeMatchmaking(QueueShard shard) {
+        Events.MatchmakingPass event = new Events.MatchmakingPass();
+        event.begin();
+        shard.lock();
         try {
-            if (this.waitingQueue.size() >= this.playersPerGame) {
-                ArrayList<Client> clients = new ArrayList<>();
+            ArrayList<Client> waitingQueue = shard.getClients();
+            int teams = waitingQueue.size() / this.playersPerGame;
+            event.waiting = waitingQueue.size();
+            event.teams = teams;
 
-                for (int i = 0; i < this.playersPerGame; i++) {
-                    // removes the first players per game from the waiting queue
-                    Client client = this.waitingQueue.removeFirst();
-                    clients.add(client);
+            for (int t = 0; t < teams; t++) {
+                // takes the next players per game from the front of the waiting queue
+                ArrayList<Client> clients = new ArrayList<>(waitingQueue.subList(t * this.playersPerGame, (t + 1) * this.playersPerGame));
+                for (Client client : clients) {
                     client.getPlayer().generateToken();
                 }
 
-                Game game = new Game(clients);
-                // starts a new virtual thread with the created game
-                Thread.ofVirtual().start(() -> this.play(game));
+                this.startGame(clients);
             }
+
+            // removes every matched client at once, instead of shifting the waiting queue for each one
+            waitingQueue.subList(0, teams * this.playersPerGame).clear();
         } finally {
-            this.waitingQueueLock.unlock();
+            shard.unlock();
         }
+
+        event.kind = "simple";
+        event.minRanking = shard.getMinRanking();
+        event.maxRanking = shard.getMaxRanking();
+        event.commit();
     }
 
     /**
-     * Handles matchmaking in rank mode by grouping clients into teams based on their rankings if enough clients are available.
+     * Handles matchmaking in rank mode by grouping the clients of a shard into as many teams as possible, based on their rankings.
+     * The clients are kept sorted by ranking, so every team is a window of consecutive clients whose ranking difference is within
+     * the limit. A single sweep finds the split into windows that forms the most teams and, among those, has the smallest total
+     * ranking spread, instead of taking the first window that fits, which could leave a tighter team unformed.
+     * @param shard the shard of the waiting queue to match
      */
-    private void rankModeMatchmaking() {
-        this.updateRankingDifference();
-        this.waitingQueueLock.lock();
-
+    void rankModeMatchmaking(QueueShard shard) {
+        Events.MatchmakingPass event = new Events.MatchmakingPass();
+        event.begin();
+        shard.lock();
         try {
-            if (this.waitingQueue.size() >= this.playersPerGame) {
-                // sorts the waiting queue by ascending ranking to compare the ranking of the players
-                this.waitingQueue.sort(Comparator.comparingInt(c -> c.getPlayer().getRanking()));
+            this.updateRankingDifference(shard);
 
-                ArrayList<Client> clients = new ArrayList<>();
-                boolean hasTeam = false;
+            ArrayList<Client> waitingQueue = shard.getClients();
+            event.waiting = waitingQueue.size();
+            if (waitingQueue.size() >= this.playersPerGame) {
+                // for the first i clients, the most teams and their smallest total spread, and whether the last of them ends a team
+                int size = waitingQueue.size();
+                int[] teamCount = new int[size + 1];
+                long[] spread = new long[size + 1];
+                boolean[] endsTeam = new boolean[size + 1];
+                for (int i = 1; i <= size; i++) {
+                    teamCount[i] = teamCount[i - 1];
+                    spread[i] = spread[i - 1];
 
-                // for each client, tries to form a team that respects the maximum ranking difference
-                for (int i = 0; i + this.playersPerGame - 1 < this.waitingQueue.size(); i++) {
-                    Client firstClient = waitingQueue.get(i);
-
-                    for (int j = i + this.playersPerGame - 1; j < this.waitingQueue.size(); j++) {
-                        Client lastClient = this.waitingQueue.get(j);
+                    int first = i - this.playersPerGame;
+                    if (first < 0) {
+                        continue;
+                    }
+                    int difference = waitingQueue.get(i - 1).getPlayer().getRanking() - waitingQueue.get(first).getPlayer().getRanking();
+                    if (difference <= shard.getRankingDifference() && (teamCount[first] + 1 > teamCount[i]
+                            || (teamCount[first] + 1 == teamCount[i] && spread[first] + difference < spread[i]))) {
+                        teamCount[i] = teamCount[first] + 1;
+                        spread[i] = spread[first] + difference;
+                        endsTeam[i] = true;
+                    }
+                }
 
-                        if (lastClient.getPlayer().getRanking() - firstClient.getPlayer().getRanking() <= this.rankingDifference) {
-                            for (int k = i; k <= j; k++) {
-                                clients.add(this.waitingQueue.remove(i));
-                            }
-                            hasTeam = true;
-                            break;
-                        }
+                // walks the best split back from the highest ranked client, marking where each team starts
+                boolean[] startsTeam = new boolean[size];
+                for (int i = size; i > 0; ) {
+                    if (endsTeam[i]) {
+                        i -= this.playersPerGame;
+                        startsTeam[i] = true;
+                    } else {
+                        i--;
                     }
+                }
 
-                    if (hasTeam) {
-                        break;
+                ArrayList<ArrayList<Client>> teams = new ArrayList<>();
+                ArrayList<Client> remaining = new ArrayList<>();
+                for (int i = 0; i < size; ) {
+                    if (startsTeam[i]) {
+                        teams.add(new ArrayList<>(waitingQueue.subList(i, i + this.playersPerGame)));
+                        i += this.playersPerGame;
+                    } else {
+                        // the client is not part of any team of the best split, so it keeps waiting
+                        remaining.add(waitingQueue.get(i));
+                        i++;
                     }
                 }
 
-                if (hasTeam) {
-                    // when a team is formed, the maximum ranking differnce is reset
-                    this.rankingDifference = 5;
-                    System.out.println("Ranking difference reset to " + this.rankingDifference + ".");
+                event.teams = teams.size();
+                if (!teams.isEmpty()) {
+                    waitingQueue.clear();
+                    waitingQueue.addAll(remaining);
 
-                    this.timeLock.lock();
-                    try {
-                        if (this.waitingQueue.isEmpty()) {
-                            this.lastUpdateTime = 0;
-                        } else {
-                            this.lastUpdateTime = this.waitingQueue.stream()
-                                    .min(Comparator.comparingLong(Client::getQueueArrivalTime)).get().getQueueArrivalTime();
-                        }
-                    } finally {
-                        this.timeLock.unlock();
+                    System.out.println("Teams formed in the ranking band " + shard.getMinRanking() + "-" + shard.getMaxRanking() + ": " + teams.size() + ".");
+                    this.resetRankingDifference(shard);
+                    for (ArrayList<Client> clients : teams) {
+                        this.startGame(clients);
                     }
-
-                    Game game = new Game(clients);
-                    Thread.ofVirtual().start(() -> this.play(game));
                 }
             }
         } finally {
-            this.waitingQueueLock.unlock();
+            shard.unlock();
         }
+
+        event.kind = "rank";
+        event.minRanking = shard.getMinRanking();
+        event.maxRanking = shard.getMaxRanking();
+        event.commit();
     }
 
     /**
-     * Updates the ranking difference for matchmaking in rank mode if the specified time has passed.
+     * Handles matchmaking in rank mode for teams that cross the edge between two adjacent shards.
+     * The highest ranked clients of the lower shard and the lowest ranked clients of the upper shard, which could not be matched
+     * inside their own shards, are merged and grouped into teams with the larger of both shards' ranking differences.
      */
-    private void updateRankingDifference() {
-        this.timeLock.lock();
-        try {
-            long updateRankingDifferenceFrequency = 60000; // 60 seconds
-            long currentTime = System.currentTimeMillis();
-            if (this.lastUpdateTime > 0 && currentTime - this.lastUpdateTime > updateRankingDifferenceFrequency) {
-                this.rankingDifference += 5;
-                this.lastUpdateTime = currentTime;
-                System.out.println("Updated ranking difference: " + this.rankingDifference + ".");
+    void overflowMatchmaking() {
+        Events.MatchmakingPass event = new Events.MatchmakingPass();
+        event.begin();
+
+        for (int band = 0; band + 1 < this.waitingQueue.length; band++) {
+            QueueShard lower = this.waitingQueue[band];
+            QueueShard upper = this.waitingQueue[band + 1];
+
+            // the shards are always locked in ascending order, so two overflow passes never wait for each other
+            lower.lock();
+            upper.lock();
+            try {
+                ArrayList<Client> lowerClients = lower.getClients();
+                ArrayList<Client> upperClients = upper.getClients();
+                // each shard is counted once, when it is first locked: the lowest as a lower shard, the others as upper shards
+                event.waiting += (band == 0 ? lowerClients.size() : 0) + upperClients.size();
+                if (lowerClients.isEmpty() || upperClients.isEmpty() || lowerClients.size() + upperClients.size() < this.playersPerGame) {
+                    continue;
+                }
+
+                // both shards are kept sorted by ranking, so their edges are next to each other
+                int rankingDifference = Math.max(lower.getRankingDifference(), upper.getRankingDifference());
+
+                boolean hasTeam = true;
+                while (hasTeam && !lowerClients.isEmpty() && !upperClients.isEmpty()) {
+                    // only the clients closest to the edge can be part of a team that crosses it
+                    int fromLower = Math.min(lowerClients.size(), this.playersPerGame - 1);
+                    int fromUpper = Math.min(upperClients.size(), this.playersPerGame - 1);
+                    ArrayList<Client> edge = new ArrayList<>(lowerClients.subList(lowerClients.size() - fromLower, lowerClients.size()));
+                    edge.addAll(upperClients.subList(0, fromUpper));
+
+                    hasTeam = false;
+                    for (int i = 0; i + this.playersPerGame <= edge.size(); i++) {
+                        int last = i + this.playersPerGame - 1;
+                        // the window must take clients from both shards, otherwise it would have been matched inside one of them
+                        if (i < fromLower && last >= fromLower && edge.get(last).getPlayer().getRanking() - edge.get(i).getPlayer().getRanking() <= rankingDifference) {
+                            ArrayList<Client> clients = new ArrayList<>(edge.subList(i, last + 1));
+                            lowerClients.removeAll(clients);
+                            upperClients.removeAll(clients);
+
+                            System.out.println("Formed a team across the ranking bands " + lower.getMinRanking() + "-" + lower.getMaxRanking() + " and " + upper.getMinRanking() + "-" + upper.getMaxRanking() + ".");
+                            this.resetRankingDifference(lower);
+                            this.resetRankingDifference(upper);
+                            this.startGame(clients);
+                            event.teams++;
+                            hasTeam = true;
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                upper.unlock();
+                lower.unlock();
             }
-        } finally {
-            this.timeLock.unlock();
         }
+
+        event.kind = "overflow";
+        event.minRanking = this.waitingQueue[0].getMinRanking();
+        event.maxRanking = this.waitingQueue[this.waitingQueue.length - 1].getMaxRanking();
+        event.commit();
+    }
+
+    /**
+     * Updates the ranking difference of a shard for matchmaking in rank mode to the one picked by its controller, from the
+     * arrival rate and the rankings of the clients waiting, so the client waiting the longest is matched within the target wait.
+     * Must be called while holding the shard's lock.
+     * @param shard the shard whose ranking difference is updated
+     */
+    private void updateRankingDifference(QueueShard shard) {
+        if (shard.getClients().isEmpty()) {
+            return;
+        }
+
+        long currentTime = this.clock.millis();
+        ToleranceController controller = shard.getController();
+        int rankingDifference = controller.rankingDifference(shard.getClients(), this.playersPerGame, currentTime);
+
+        Events.ToleranceDecision event = new Events.ToleranceDecision();
+        event.minRanking = shard.getMinRanking();
+        event.maxRanking = shard.getMaxRanking();
+        event.waiting = shard.getClients().size();
+        event.arrivalRate = controller.getArrivalRate();
+        event.oldestWait = controller.getOldestWait();
+        event.targetWait = controller.getTargetWait();
+        event.expectedPlayers = controller.getExpectedPlayers();
+        event.rankingDifference = rankingDifference;
+        event.commit();
+
+        if (rankingDifference == shard.getRankingDifference()) {
+            return;
+        }
+
+        shard.setRankingDifference(rankingDifference);
+
+        // above the target wait the difference changes on every pass, so at most one change per interval is logged;
+        // every decision is still recorded by its event
+        if (currentTime - shard.getLastLogTime() >= TOLERANCE_LOG_INTERVAL) {
+            shard.setLastLogTime(currentTime);
+            System.out.printf("Updated ranking difference of the ranking band %d-%d: %d (%d waiting, %.1f arrivals per minute, oldest waiting for %d of %d seconds).%n",
+                    shard.getMinRanking(), shard.getMaxRanking(), rankingDifference, shard.getClients().size(), controller.getArrivalRate(),
+                    controller.getOldestWait() / 1000, controller.getTargetWait() / 1000);
+        }
+    }
+
+    /**
+     * Resets the ranking difference of a shard after a team is formed with some of its clients.
+     * Must be called while holding the shard's lock.
+     * @param shard the shard whose ranking difference is reset
+     */
+    private void resetRankingDifference(QueueShard shard) {
+        // when a team is formed, the maximum ranking differnce is reset
+        shard.setRankingDifference(QueueShard.INITIAL_RANKING_DIFFERENCE);
+        System.out.println("Ranking difference of the ranking band " + shard.getMinRanking() + "-" + shard.getMaxRanking() + " reset to " + shard.getRankingDifference() + ".");
+    }
+
+    /**
+     * Starts a new game with a team of clients, in a new virtual thread.
+     * @param clients the team
+     */
+    void startGame(ArrayList<Client> clients) {
+        this.checkpointPending = true;
+        if (this.recorder != null) {
+            this.recorder.match(clients);
+        }
+
+        Game game = new Game(clients, this.corpus, this.history, this.clock);
+        int number = this.gameNumber.incrementAndGet();
+        this.games.put(number, game);
+        Thread.ofVirtual().start(() -> {
+            try {
+                this.play(game);
+            } finally {
+                this.games.remove(number);
+            }
+        });
     }
 
     /**
-     * Handles the gameplay by starting a new game with a set of clients, updating the database and the waiting queue after the game ends.
+     * Handles the gameplay by starting a new game with a set of clients, publishing the rankings that resulted from it and updating the waiting queue after the game ends.
      * @param game the game to be played
      */
     private void play(Game game) {
         ArrayList<Client> newClients = game.play();
 
-        this.databaseLock.lock();
-        try {
-            // updates the database with all player's ranking that resulted from the last game played
-            this.database.save();
-            System.out.println("Updated database.");
-        } catch (IOException e) {
-            System.out.println("The database could not be updated after the game. Trying again after the next game ends.");
-        } finally {
-            this.databaseLock.unlock();
+        // the ranking thread applies the result and saves it with the other games that ended meanwhile, so no lock is taken here;
+        // the players who do not play again can be evicted from memory after their rankings are saved
+        List<Player> players = game.getClients().stream().map(Client::getPlayer).toList();
+        List<Player> leaving = game.getClients().stream().filter((c) -> !newClients.contains(c)).map(Client::getPlayer).toList();
+        this.rankings.submit(players, game.getIncrements(), leaving).join();
+
+        if (this.recorder != null) {
+            for (Client client : game.getClients()) {
+                this.recorder.result(client.getPlayer());
+            }
         }
 
         // adds the clients who want to play again to the waiting queue
         StringBuilder queue = new StringBuilder();
-        this.waitingQueueLock.lock();
         try {
             for (int i = 0; i < newClients.size(); i++) {
                 Client client = newClients.get(i);
-                client.setQueueArrivalTime(System.currentTimeMillis());
-
-                if (this.waitingQueue.isEmpty()) {
-                    this.lastUpdateTime = client.getQueueArrivalTime();
-                }
+                client.setQueueArrivalTime(this.clock.millis());
 
-                this.waitingQueue.add(client);
+                // the client's ranking changed during the game, so it may now belong to another shard
+                QueueShard shard = this.lockShardOf(client.getPlayer());
                 try {
-                    client.sendMessage("You reentered the waiting queue with ranking " + client.getPlayer().getRanking() + ".\nIn case the connection breaks, your new token to reconnect is \"" + client.getPlayer().getToken() + "\".\nEND");
-                    queue.append(i + 1).append(". ").append(client.getPlayer().getUsername()).append(" (ranking: ").append(client.getPlayer().getRanking()).append(")\n");
-                } catch (IOException e) {
-                    System.out.println("Client " + client.getPlayer().getUsername() + " disconnected when reentering the queue. It will be kept in the queue until the next alive check in case he reconnects.");
+                    // the message is enqueued before the client can be matched, so it always arrives before the next game starts;
+                    // a client who disconnected is kept in the queue until the next alive check in case he reconnects
+                    client.enqueueMessage(Client.encode("You reentered the waiting queue with ranking " + client.getPlayer().getRanking() + ".\nIn case the connection breaks, your new token to reconnect is \"" + client.getPlayer().getToken() + "\".\nEND"));
+                    this.addToShard(shard, client);
+                } finally {
+                    shard.unlock();
                 }
+
+                queue.append(i + 1).append(". ").append(client.getPlayer().getUsername()).append(" (ranking: ").append(client.getPlayer().getRanking()).append(")\n");
             }
         } finally {
-            this.waitingQueueLock.unlock();
             System.out.println("Queue updated\n" + queue);
         }
     }
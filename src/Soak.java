@@ -0,0 +1,620 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.UnixOperatingSystemMXBean;
+
+public class Soak {
+    /**
+     * Faults a bot injects in a session: none, reading slowly, closing only its output, disconnecting abruptly,
+     * or dropping its connection in the waiting queue and reconnecting twice at once with its token.
+     */
+    enum Fault {
+        NONE,
+        SLOW_READER,
+        HALF_OPEN,
+        ABRUPT,
+        RECONNECT_RACE
+    }
+
+    /**
+     * Phases of the protocol where a half-open or abrupt fault is injected.
+     */
+    enum Phase {
+        MENU,
+        USERNAME,
+        PASSWORD,
+        QUEUE,
+        PING,
+        TURN,
+        RESULTS,
+        PLAY_AGAIN
+    }
+
+    private static final String PASSWORD = "soak";
+    private static final long SAMPLE_INTERVAL = 10000; // time between samples of the Server's resources, in milliseconds
+    private static final int READ_TIMEOUT = 300000; // a bot waiting longer than this for a message counts the Server as stuck, in milliseconds
+    private static final long MAX_THINK_TIME = 500; // maximum time a bot takes to answer, in milliseconds
+    private static final int SLOW_READ_SIZE = 64; // bytes read at once by a slow reader
+    private static final long SLOW_READ_DELAY = 5; // time a slow reader waits before each read, in milliseconds
+    private static final double WARMUP = 0.2; // fraction of the samples taken before the trends are measured
+    private static final double MAX_GROWTH = 0.25; // growth from the first to the last quarter of the measured samples considered unbounded
+
+    /**
+     * The Server's resources at one moment.
+     */
+    private static class Sample {
+        final long time;
+        final long heap;
+        final long threads;
+        final long descriptors;
+        final long queue;
+        final long sessions;
+
+        Sample(long time, long heap, long threads, long descriptors, long queue, long sessions) {
+            this.time = time;
+            this.heap = heap;
+            this.threads = threads;
+            this.descriptors = descriptors;
+            this.queue = queue;
+            this.sessions = sessions;
+        }
+    }
+
+    /**
+     * A bot's connection to the Server, reading the messages of the protocol, which end with a line ending with "END".
+     */
+    private static class Connection implements Closeable {
+        final Socket socket;
+        final BufferedReader reader;
+        final OutputStream output;
+
+        Connection(int port, boolean slow) throws IOException {
+            this.socket = new Socket();
+            if (slow) {
+                // a small receive buffer makes the Server's writes block on the slow reader
+                this.socket.setReceiveBufferSize(1024);
+            }
+            this.socket.connect(new InetSocketAddress("localhost", port));
+            this.socket.setSoTimeout(READ_TIMEOUT);
+
+            InputStream input = this.socket.getInputStream();
+            this.reader = new BufferedReader(new InputStreamReader(slow ? new SlowInputStream(input) : input, StandardCharsets.UTF_8));
+            this.output = this.socket.getOutputStream();
+        }
+
+        /**
+         * @param message message to send, without its terminator
+         * @throws IOException If the connection broke
+         */
+        void send(String message) throws IOException {
+            this.output.write((message + "\nEND\n").getBytes(StandardCharsets.UTF_8));
+            this.output.flush();
+        }
+
+        /**
+         * @return the next message, with its lines joined
+         * @throws IOException If the connection broke or timed out
+         */
+        String read() throws IOException {
+            StringBuilder message = new StringBuilder();
+            String line;
+            while ((line = this.reader.readLine()) != null) {
+                if (message.isEmpty() && line.isEmpty()) {
+                    // the blank line after the end of the previous message
+                    continue;
+                }
+
+                message.append(line).append('\n');
+                if (line.endsWith("END")) {
+                    return message.toString();
+                }
+            }
+            throw new EOFException("The Server closed the connection");
+        }
+
+        /**
+         * Reads messages until one contains any of the given texts, answering pings on the way.
+         * @param texts texts to wait for
+         * @return the first message containing one of them
+         * @throws IOException If the connection broke or timed out
+         */
+        String expect(String... texts) throws IOException {
+            while (true) {
+                String message = this.read();
+                for (String text : texts) {
+                    if (message.contains(text)) {
+                        return message;
+                    }
+                }
+
+                if (message.startsWith(ClockSync.PING)) {
+                    this.send(ClockSync.PONG + message.substring(ClockSync.PING.length(), message.indexOf('\n')) + " " + System.currentTimeMillis());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+
+    /**
+     * Input stream that reads a few bytes at a time, with a pause before each read.
+     */
+    private static class SlowInputStream extends FilterInputStream {
+        SlowInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                Thread.sleep(SLOW_READ_DELAY);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return super.read(buffer, offset, Math.min(length, SLOW_READ_SIZE));
+        }
+    }
+
+    private final Server server;
+    private final int port;
+    private final PrintStream out;
+    private final Path directory;
+
+    private final AtomicLong sessions;
+    private final AtomicLong games;
+    private final AtomicLong timeouts;
+    private final AtomicLong errors;
+    private final EnumMap<Fault, AtomicLong> faults;
+
+    /**
+     * Constructs a new Soak object that runs a Server in this process, listening on an ephemeral loopback port.
+     * @param server the Server
+     * @param out stream for the report, since the Server's own messages are discarded
+     * @param directory directory of the Server's files, where a thread dump is written if the run fails
+     */
+    private Soak(Server server, PrintStream out, Path directory) {
+        this.server = server;
+        this.port = server.getPort();
+        this.out = out;
+        this.directory = directory;
+        this.sessions = new AtomicLong();
+        this.games = new AtomicLong();
+        this.timeouts = new AtomicLong();
+        this.errors = new AtomicLong();
+        this.faults = new EnumMap<>(Fault.class);
+        for (Fault fault : Fault.values()) {
+            this.faults.put(fault, new AtomicLong());
+        }
+    }
+
+    /**
+     * Runs a Server in this process against bots that connect, play and inject faults in every phase of the protocol, sampling
+     * the Server's heap, threads, file descriptors and waiting queue, and fails if any of them keeps growing.
+     * @param args DURATION BOTS MATCHMAKING_MODE PLAYERS_PER_GAME
+     */
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.out.println("Usage: Soak <DURATION (minutes)> <BOTS (>0)> <MATCHMAKING MODE (0/1)> <PLAYERS PER GAME (>0)>");
+            return;
+        }
+
+        long duration = Long.parseLong(args[0]) * 60000;
+        int bots = Integer.parseInt(args[1]);
+        int matchmakingMode = Integer.parseInt(args[2]);
+        int playersPerGame = Integer.parseInt(args[3]);
+
+        PrintStream out = System.out;
+        boolean passed;
+        try {
+            Path directory = Files.createTempDirectory("soak");
+            Path database = Files.createFile(directory.resolve("soak.csv"));
+            out.println("Soaking a Server with " + bots + " bots for " + args[0] + " minutes. Its files are in " + directory + ".");
+
+            // the Server's own messages are discarded, so they do not mix with the report
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Server server = new Server(0, database.toString(), matchmakingMode, playersPerGame, null);
+            Thread.ofVirtual().start(() -> {
+                try {
+                    server.execute();
+                } catch (InterruptedException e) {
+                    out.println("Server interrupted.");
+                }
+            });
+
+            passed = new Soak(server, out, directory).run(bots, duration);
+        } catch (IOException e) {
+            out.println("Soak exception: " + e.getMessage() + ".");
+            passed = false;
+        }
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Starts the bots and samples the Server until the duration ends.
+     * @param bots number of bots
+     * @param duration duration of the run, in milliseconds
+     * @return true if no resource grew without bound and the Server never got stuck; false if otherwise
+     */
+    private boolean run(int bots, long duration) {
+        for (int i = 0; i < bots; i++) {
+            String username = "soak" + i;
+            Thread.ofVirtual().start(() -> this.bot(username));
+        }
+
+        ArrayList<Sample> samples = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        this.out.println("  time    heap MB  threads  descriptors  queue  sessions  games  timeouts  errors");
+        while (System.currentTimeMillis() - start < duration) {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            Sample sample = this.sample(System.currentTimeMillis() - start);
+            samples.add(sample);
+            this.out.printf("%6ds %9.1f %8d %12d %6d %9d %6d %9d %7d%n", sample.time / 1000, sample.heap / 1048576.0, sample.threads,
+                    sample.descriptors, sample.queue, sample.sessions, this.games.get(), this.timeouts.get(), this.errors.get());
+        }
+
+        this.out.println("Faults injected: " + this.faults + ".");
+        boolean passed = this.verdict(samples, bots);
+        if (!passed) {
+            this.dumpThreads();
+        }
+        return passed;
+    }
+
+    /**
+     * @param time time since the start of the run, in milliseconds
+     * @return the Server's resources now, measuring the heap after a full collection
+     */
+    private Sample sample(long time) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+
+        long descriptors = -1;
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean system) {
+            descriptors = system.getOpenFileDescriptorCount();
+        }
+
+        return new Sample(time, heap, Soak.threads(), descriptors, this.server.waitingQueueSize(), this.sessions.get());
+    }
+
+    /**
+     * Counts the live threads, including virtual threads, which the thread MXBean does not count, from a thread dump.
+     * @return the number of threads, or -1 if the dump failed
+     */
+    private static long threads() {
+        try {
+            Path dump = Files.createTempFile("soak", ".json");
+            Files.delete(dump);
+            ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).dumpThreads(dump.toString(), HotSpotDiagnosticMXBean.ThreadDumpFormat.JSON);
+            String json = Files.readString(dump);
+            Files.delete(dump);
+            return json.split("\"tid\"", -1).length - 1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes a thread dump, with the stacks of the Server's and the bots' threads, to find where they are stuck or leaking.
+     */
+    private void dumpThreads() {
+        Path dump = this.directory.resolve("threads.txt");
+        try {
+            Files.deleteIfExists(dump);
+            ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).dumpThreads(dump.toString(), HotSpotDiagnosticMXBean.ThreadDumpFormat.TEXT_PLAIN);
+            this.out.println("Thread dump written to " + dump + ".");
+        } catch (IOException e) {
+            this.out.println("The thread dump could not be written: " + e.getMessage() + ".");
+        }
+    }
+
+    /**
+     * Compares the first and the last quarter of the samples taken after the warmup.
+     * @param samples every sample of the run
+     * @param bots number of bots
+     * @return true if no resource grew without bound, no bot timed out and sessions kept completing; false if otherwise
+     */
+    private boolean verdict(ArrayList<Sample> samples, int bots) {
+        int warmup = (int) (samples.size() * WARMUP);
+        int quarter = (samples.size() - warmup) / 4;
+        if (quarter == 0) {
+            this.out.println("The run was too short to measure any trend. It needs at least " + (int) Math.ceil(4 / (1 - WARMUP)) + " samples.");
+            return false;
+        }
+
+        List<Sample> first = samples.subList(warmup, warmup + quarter);
+        List<Sample> last = samples.subList(samples.size() - quarter, samples.size());
+
+        boolean passed = true;
+        passed &= this.bounded("Heap", first.stream().mapToLong((s) -> s.heap).toArray(), last.stream().mapToLong((s) -> s.heap).toArray(), 16 * 1048576);
+        passed &= this.bounded("Threads", first.stream().mapToLong((s) -> s.threads).toArray(), last.stream().mapToLong((s) -> s.threads).toArray(), bots);
+        passed &= this.bounded("File descriptors", first.stream().mapToLong((s) -> s.descriptors).toArray(), last.stream().mapToLong((s) -> s.descriptors).toArray(), bots);
+        passed &= this.bounded("Waiting queue", first.stream().mapToLong((s) -> s.queue).toArray(), last.stream().mapToLong((s) -> s.queue).toArray(), bots / 2 + 1);
+
+        if (this.timeouts.get() > 0) {
+            this.out.println("FAIL: bots waited more than " + READ_TIMEOUT / 1000 + " seconds for a message " + this.timeouts.get() + " times.");
+            passed = false;
+        }
+
+        long progress = last.get(last.size() - 1).sessions - samples.get(samples.size() - quarter - 1).sessions;
+        if (progress == 0) {
+            this.out.println("FAIL: no session completed during the last quarter of the run.");
+            passed = false;
+        }
+
+        this.out.println(passed ? "PASS" : "FAIL");
+        return passed;
+    }
+
+    /**
+     * @param first values in the first quarter of the measured samples
+     * @param last values in the last quarter of the measured samples
+     * @param slack growth always tolerated, for resources that are small or vary with the bots' phases
+     * @return true if the median of the last quarter did not grow beyond the tolerated growth from the median of the first; false if otherwise
+     */
+    private boolean bounded(String name, long[] first, long[] last, long slack) {
+        long before = Soak.median(first);
+        long after = Soak.median(last);
+        boolean bounded = after <= before * (1 + MAX_GROWTH) + slack;
+        this.out.println((bounded ? "ok:   " : "FAIL: ") + name + " went from " + before + " to " + after + ".");
+        return bounded;
+    }
+
+    /**
+     * @param values values to summarize
+     * @return the median of the values
+     */
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Runs sessions of a bot in a loop, each with a random fault, until the process exits.
+     * @param username the bot's username
+     */
+    private void bot(String username) {
+        boolean registered = false;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            Fault fault = Fault.values()[random.nextInt(Fault.values().length)];
+            Phase phase = Phase.values()[random.nextInt(Phase.values().length)];
+            this.faults.get(fault).incrementAndGet();
+
+            try {
+                registered = this.session(username, registered, fault, phase);
+            } catch (SocketTimeoutException e) {
+                this.timeouts.incrementAndGet();
+            } catch (IOException e) {
+                // a fault injected by another bot in the same game can also end this session
+                this.errors.incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            this.sessions.incrementAndGet();
+            try {
+                Thread.sleep(random.nextLong(2 * MAX_THINK_TIME));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one session of a bot, from the menu until it leaves the Server or the fault ends the session.
+     * @param username the bot's username
+     * @param registered true if the bot already registered
+     * @param fault fault to inject
+     * @param phase phase where a half-open or abrupt fault is injected
+     * @return true if the bot is registered at the end of the session; false if otherwise
+     * @throws IOException If the connection broke without being a fault of this bot
+     * @throws InterruptedException If the bot was interrupted
+     */
+    private boolean session(String username, boolean registered, Fault fault, Phase phase) throws IOException, InterruptedException {
+        Connection connection = new Connection(this.port, fault == Fault.SLOW_READER);
+        try {
+            connection.expect("Menu");
+            if (this.inject(connection, fault, phase, Phase.MENU)) {
+                return registered;
+            }
+
+            connection.send(registered ? "LOG" : "REG");
+            connection.expect("username");
+            connection.send(username);
+            if (this.inject(connection, fault, phase, Phase.USERNAME)) {
+                return registered;
+            }
+
+            connection.expect("password");
+            this.think();
+            connection.send(PASSWORD);
+            if (this.inject(connection, fault, phase, Phase.PASSWORD)) {
+                return registered;
+            }
+
+            String message = connection.expect("waiting queue", "already exists", "do not match");
+            if (!message.contains("entered the waiting queue")) {
+                // the username was registered by a session cut before its answer, or the Player is still in the waiting queue
+                return registered || message.contains("already exists");
+            }
+
+            if (fault == Fault.RECONNECT_RACE) {
+                this.reconnectRace(connection, message);
+                return true;
+            }
+            if (this.inject(connection, fault, phase, Phase.QUEUE)) {
+                return true;
+            }
+
+            this.play(connection, fault, phase);
+            return true;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Plays games until the bot does not want to play again or the fault ends the session.
+     * @param connection the bot's connection, in the waiting queue
+     * @param fault fault to inject
+     * @param phase phase where a half-open or abrupt fault is injected
+     * @throws IOException If the connection broke without being a fault of this bot
+     * @throws InterruptedException If the bot was interrupted
+     */
+    private void play(Connection connection, Fault fault, Phase phase) throws IOException, InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            connection.expect("The game started");
+
+            if (phase == Phase.PING && (fault == Fault.ABRUPT || fault == Fault.HALF_OPEN)) {
+                connection.expect(ClockSync.PING);
+                this.inject(connection, fault, phase, Phase.PING);
+                return;
+            }
+
+            String message = connection.expect("Write this sentence");
+            long received = System.currentTimeMillis();
+            String goal = message.substring(message.indexOf('"') + 1, message.lastIndexOf('"'));
+            if (phase == Phase.TURN && (fault == Fault.ABRUPT || fault == Fault.HALF_OPEN)) {
+                // the fault comes halfway through the sentence
+                connection.send(TypingProgress.APPEND + goal.substring(0, goal.length() / 2));
+                this.inject(connection, fault, phase, Phase.TURN);
+                return;
+            }
+
+            this.think();
+            connection.send(ClockSync.STAMP + received + " " + System.currentTimeMillis());
+            connection.send(goal);
+            connection.expect("Your time");
+
+            connection.expect("You won", "You lost");
+            this.games.incrementAndGet();
+            if (this.inject(connection, fault, phase, Phase.RESULTS)) {
+                return;
+            }
+
+            connection.expect("try again");
+            this.think();
+            if (this.inject(connection, fault, phase, Phase.PLAY_AGAIN)) {
+                return;
+            }
+
+            if (random.nextInt(3) == 0) {
+                connection.send("Yes");
+                connection.expect("reentered the waiting queue");
+            } else {
+                connection.send("No");
+                connection.expect("Thank you");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Injects a half-open or abrupt fault if the bot reached the phase chosen for it.
+     * A half-open connection closes only its output and waits for the Server to close the connection; an abrupt one resets the connection.
+     * @param connection the bot's connection
+     * @param fault fault of the session
+     * @param phase phase chosen for the fault
+     * @param current phase the bot reached
+     * @return true if the fault was injected, which ends the session; false if otherwise
+     * @throws InterruptedException If the bot was interrupted
+     */
+    private boolean inject(Connection connection, Fault fault, Phase phase, Phase current) throws InterruptedException {
+        if (phase != current || (fault != Fault.ABRUPT && fault != Fault.HALF_OPEN)) {
+            return false;
+        }
+
+        try {
+            if (current == Phase.QUEUE) {
+                // the bot stays in the waiting queue for a while, so it may be matched before the fault
+                Thread.sleep(ThreadLocalRandom.current().nextLong(10 * MAX_THINK_TIME));
+            }
+
+            if (fault == Fault.HALF_OPEN) {
+                connection.socket.shutdownOutput();
+                connection.socket.setSoTimeout((int) (20 * MAX_THINK_TIME));
+                while (true) {
+                    connection.read();
+                }
+            }
+
+            connection.socket.setSoLinger(true, 0);
+        } catch (IOException e) {
+            // the Server closed the half-open connection, the connection was already broken, or the Server did not notice it
+            // in time, since it only reads from clients in the waiting queue when it checks if they are alive
+        }
+        return true;
+    }
+
+    /**
+     * Drops the connection of a bot waiting in the queue and reconnects twice at once with its token. Whichever connection
+     * the Server keeps, both are then closed, leaving a disconnected Client in the waiting queue until it is checked or matched.
+     * @param connection the bot's connection, in the waiting queue
+     * @param queued the message with the bot's token
+     * @throws InterruptedException If the bot was interrupted
+     */
+    private void reconnectRace(Connection connection, String queued) throws InterruptedException {
+        int start = queued.indexOf("token to reconnect is \"") + "token to reconnect is \"".length();
+        String token = queued.substring(start, queued.indexOf('"', start));
+
+        try {
+            connection.socket.setSoLinger(true, 0);
+            connection.close();
+        } catch (IOException e) {
+            // the connection was already broken
+        }
+
+        ArrayList<Thread> racers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            racers.add(Thread.ofVirtual().start(() -> {
+                try (Connection racer = new Connection(this.port, false)) {
+                    racer.expect("Menu");
+                    racer.send("REC");
+                    racer.expect("token");
+                    racer.send(token);
+                    racer.expect("Reconnect successful", "not in the queue", "Menu");
+                } catch (IOException e) {
+                    // the other racer's reconnection may close this one
+                }
+            }));
+        }
+
+        for (Thread racer : racers) {
+            racer.join();
+        }
+    }
+
+    /**
+     * Waits a random time, as a player thinking or typing.
+     * @throws InterruptedException If the bot was interrupted
+     */
+    private void think() throws InterruptedException {
+        Thread.sleep(ThreadLocalRandom.current().nextLong(MAX_THINK_TIME));
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+public class Tls {
+    public static final String PROTOCOL = "TLSv1.3";
+
+    private static final int HANDSHAKE_TIMEOUT = 10000; // maximum time a client has to finish the handshake, in milliseconds
+    private static final int SESSION_CACHE_SIZE = 20000; // sessions the server keeps to be resumed
+    private static final int SESSION_TIMEOUT = 86400; // time a session can be resumed, in seconds
+
+    /**
+     * Creates the Server's TLS context from the key store in the typeracer.tls.keystore property.
+     * @return the Server's context, or null if TLS is not configured
+     * @throws IOException If the key store could not be read or the context could not be created
+     */
+    public static SSLContext serverContext() throws IOException {
+        String keyStoreFile = System.getProperty("typeracer.tls.keystore");
+        if (keyStoreFile == null) {
+            return null;
+        }
+
+        char[] password = System.getProperty("typeracer.tls.password", "").toCharArray();
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(Tls.loadKeyStore(keyStoreFile, password), password);
+
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(keyManagers.getKeyManagers(), null, null);
+
+            // reconnecting clients resume their session with an abbreviated handshake instead of a full one
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid TLS key store " + keyStoreFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a Client's TLS context, trusting the certificates in the typeracer.tls.truststore property.
+     * The same context must be used for every connection of the Client, since it holds the sessions to resume.
+     * @return the Client's context, or null if TLS is not configured
+     * @throws IOException If the trust store could not be read or the context could not be created
+     */
+    public static SSLContext clientContext() throws IOException {
+        String trustStoreFile = System.getProperty("typeracer.tls.truststore");
+        if (trustStoreFile == null) {
+            return null;
+        }
+
+        char[] password = System.getProperty("typeracer.tls.password", "").toCharArray();
+        try {
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(Tls.loadKeyStore(trustStoreFile, password));
+
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid TLS trust store " + trustStoreFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Performs the handshake of a TLS socket in the calling thread, with a timeout, so a slow client only holds its own thread.
+     * Plain sockets are left untouched.
+     * @param socket the connection
+     * @throws IOException If the handshake failed or timed out, in which case the socket is closed
+     */
+    public static void handshake(Socket socket) throws IOException {
+        if (!(socket instanceof SSLSocket sslSocket)) {
+            return;
+        }
+
+        Events.TlsHandshake event = new Events.TlsHandshake();
+        event.begin();
+        long start = System.currentTimeMillis();
+
+        // the handshake is made of small messages, which must not wait for delayed acknowledgements
+        sslSocket.setTcpNoDelay(true);
+        int timeout = sslSocket.getSoTimeout();
+        sslSocket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        try {
+            sslSocket.startHandshake();
+            sslSocket.setSoTimeout(timeout);
+        } catch (IOException e) {
+            sslSocket.close();
+            throw e;
+        }
+
+        SSLSession session = sslSocket.getSession();
+        event.protocol = session.getProtocol();
+        event.cipherSuite = session.getCipherSuite();
+        event.resumed = Tls.isResumed(session, start);
+        event.commit();
+    }
+
+    /**
+     * @param session session of a finished handshake
+     * @param handshakeStart time when the handshake started
+     * @return true if the session was created before the handshake, meaning it was resumed; false if otherwise
+     */
+    public static boolean isResumed(SSLSession session, long handshakeStart) {
+        return session.getCreationTime() < handshakeStart;
+    }
+
+    /**
+     * @param file key store file, in PKCS12 format
+     * @param password key store password
+     * @return the loaded key store
+     * @throws IOException If the file could not be read
+     * @throws GeneralSecurityException If the key store is invalid
+     */
+    private static KeyStore loadKeyStore(String file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream input = new FileInputStream(file)) {
+            keyStore.load(input, password);
+        }
+        return keyStore;
+    }
+}
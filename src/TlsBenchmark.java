@@ -0,0 +1,213 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+public class TlsBenchmark {
+    private static final int WARMUP_CONNECTIONS = 200; // connections made before measuring, so the JIT compiles the handshake
+
+    /**
+     * Handshake and reconnection costs measured for one kind of connection.
+     */
+    private static class Result {
+        final String name;
+        final long[] latencies;
+        final long serverCpuTime;
+        final int resumed;
+
+        Result(String name, long[] latencies, long serverCpuTime, int resumed) {
+            this.name = name;
+            this.latencies = latencies;
+            this.serverCpuTime = serverCpuTime;
+            this.resumed = resumed;
+        }
+    }
+
+    private final ServerSocket server;
+    private final ThreadMXBean threads;
+    private final AtomicLong serverCpuTime;
+    private final AtomicInteger resumed;
+
+    /**
+     * Constructs a new TlsBenchmark object with a loopback server that answers one line on each connection.
+     * @param server the server's socket, plain or TLS
+     */
+    private TlsBenchmark(ServerSocket server) {
+        this.server = server;
+        this.threads = ManagementFactory.getThreadMXBean();
+        this.serverCpuTime = new AtomicLong();
+        this.resumed = new AtomicInteger();
+
+        Thread thread = new Thread(this::serve);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Compares, on loopback, the cost of reconnecting over plain TCP, over TLS with a full handshake and over TLS resuming the session.
+     * @param args KEY_STORE PASSWORD [CONNECTIONS]
+     */
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("Usage: TlsBenchmark <KEY STORE (*.p12)> <PASSWORD> [CONNECTIONS (>0)]");
+            return;
+        }
+
+        System.setProperty("typeracer.tls.keystore", args[0]);
+        System.setProperty("typeracer.tls.truststore", args[0]);
+        System.setProperty("typeracer.tls.password", args[1]);
+        int connections = args.length == 3 ? Integer.parseInt(args[2]) : 1000;
+
+        try {
+            SSLContext serverContext = Tls.serverContext();
+            TlsBenchmark plain = new TlsBenchmark(TlsBenchmark.bind(new ServerSocket()));
+            TlsBenchmark tls = new TlsBenchmark(TlsBenchmark.bind(serverContext.getServerSocketFactory().createServerSocket()));
+
+            ArrayList<Result> results = new ArrayList<>();
+            results.add(plain.run("Plain TCP", connections, SocketFactory.getDefault(), false));
+            results.add(tls.run("TLS, full handshake", connections, null, false));
+            results.add(tls.run("TLS, resumed session", connections, Tls.clientContext().getSocketFactory(), true));
+
+            System.out.println("Reconnections of " + connections + " clients on loopback (connect, handshake, REC request and answer):");
+            for (Result result : results) {
+                TlsBenchmark.report(result, connections);
+            }
+        } catch (IOException e) {
+            System.out.println("Benchmark exception: " + e.getMessage() + ".");
+        }
+    }
+
+    /**
+     * @param socket an unbound server socket
+     * @return the socket, bound to an ephemeral loopback port
+     * @throws IOException If an I/O error occurred
+     */
+    private static ServerSocket bind(ServerSocket socket) throws IOException {
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        return socket;
+    }
+
+    /**
+     * Accepts connections in a loop, handling each one in its own platform thread, whose CPU time can be measured.
+     */
+    private void serve() {
+        while (true) {
+            try {
+                Socket socket = this.server.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(() -> this.answer(socket));
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                System.out.println("Benchmark server exception: " + e.getMessage() + ".");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Performs the handshake, measuring its CPU time, and answers one line like the Server's reconnection menu.
+     * @param socket the connection
+     */
+    private void answer(Socket socket) {
+        try (socket) {
+            long start = System.currentTimeMillis();
+            long cpuTime = this.threads.getCurrentThreadCpuTime();
+            Tls.handshake(socket);
+            this.serverCpuTime.addAndGet(this.threads.getCurrentThreadCpuTime() - cpuTime);
+            if (socket instanceof SSLSocket sslSocket && Tls.isResumed(sslSocket.getSession(), start)) {
+                this.resumed.incrementAndGet();
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            reader.readLine();
+            OutputStream output = socket.getOutputStream();
+            output.write("Enter your token!\n".getBytes());
+            output.flush();
+            reader.readLine();
+        } catch (IOException e) {
+            System.out.println("Benchmark server exception: " + e.getMessage() + ".");
+        }
+    }
+
+    /**
+     * Reconnects a number of times, after a warmup, measuring the latency of each reconnection.
+     * @param name name of the kind of connection
+     * @param connections number of measured reconnections
+     * @param factory factory shared by every connection, or null to create a new TLS context, without sessions to resume, for each one
+     * @param warmFactory true if the warmup must use the shared factory, so its sessions can be resumed
+     * @return the measurements
+     * @throws IOException If an I/O error occurred
+     */
+    private Result run(String name, int connections, SocketFactory factory, boolean warmFactory) throws IOException {
+        for (int i = 0; i < WARMUP_CONNECTIONS; i++) {
+            this.reconnect(factory != null && warmFactory ? factory : this.factory(factory));
+        }
+
+        this.serverCpuTime.set(0);
+        this.resumed.set(0);
+        long[] latencies = new long[connections];
+        for (int i = 0; i < connections; i++) {
+            SocketFactory connectionFactory = this.factory(factory);
+            long start = System.nanoTime();
+            this.reconnect(connectionFactory);
+            latencies[i] = System.nanoTime() - start;
+        }
+
+        return new Result(name, latencies, this.serverCpuTime.get(), this.resumed.get());
+    }
+
+    /**
+     * @param factory shared factory, or null
+     * @return the shared factory, or the factory of a new TLS context if there is none
+     * @throws IOException If the TLS context could not be created
+     */
+    private SocketFactory factory(SocketFactory factory) throws IOException {
+        return factory != null ? factory : Tls.clientContext().getSocketFactory();
+    }
+
+    /**
+     * Connects to the benchmark server, sends a reconnection request and waits for the answer.
+     * @param factory factory of the socket
+     * @throws IOException If an I/O error occurred
+     */
+    private void reconnect(SocketFactory factory) throws IOException {
+        try (Socket socket = factory.createSocket()) {
+            // small handshake and request messages are sent at once, instead of waiting for delayed acknowledgements
+            socket.setTcpNoDelay(true);
+            socket.connect(this.server.getLocalSocketAddress());
+            Tls.handshake(socket);
+
+            OutputStream output = socket.getOutputStream();
+            output.write("REC\n".getBytes());
+            output.flush();
+            new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            output.write("token\n".getBytes());
+            output.flush();
+        }
+    }
+
+    /**
+     * Prints the latency percentiles and the server's CPU time per handshake of a kind of connection.
+     * @param result the measurements
+     * @param connections number of measured reconnections
+     */
+    private static void report(Result result, int connections) {
+        long[] sorted = result.latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-22s p50 %7.3f ms, p99 %7.3f ms, server CPU per handshake %7.3f ms, resumed %d/%d%n", result.name,
+                sorted[sorted.length / 2] / 1e6, sorted[Math.max((int) Math.ceil(0.99 * sorted.length) - 1, 0)] / 1e6,
+                result.serverCpuTime / 1e6 / connections, result.resumed, connections);
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class ToleranceController {
+    private static final double GAP_SMOOTHING = 0.2; // weight of the newest gap in the moving average of the gaps between arrivals
+    private static final long OVERDUE_WIDENING = 1000; // time over the target wait per extra ranking point, when the shard alone cannot form a team, in milliseconds
+
+    private final long targetWait;
+
+    private double averageGap = -1; // moving average of the time between arrivals, in milliseconds, or -1 before the second arrival
+    private long lastArrivalTime = 0;
+
+    // inputs of the last decision, kept to be reported with it
+    private double arrivalRate = 0;
+    private long oldestWait = 0;
+    private double expectedPlayers = 0;
+
+    /**
+     * Constructs a new ToleranceController object for a shard of the waiting queue.
+     * @param targetWait time within which every client should be matched, in milliseconds
+     */
+    public ToleranceController(long targetWait) {
+        this.targetWait = targetWait;
+    }
+
+    /**
+     * Updates the arrival rate with a client arriving at the shard.
+     * @param time time of the arrival
+     */
+    public void recordArrival(long time) {
+        if (this.lastArrivalTime > 0) {
+            double gap = Math.max(time - this.lastArrivalTime, 0);
+            this.averageGap = this.averageGap < 0 ? gap : GAP_SMOOTHING * gap + (1 - GAP_SMOOTHING) * this.averageGap;
+        }
+        this.lastArrivalTime = Math.max(time, this.lastArrivalTime);
+    }
+
+    /**
+     * Estimates the arrival rate. A quiet period longer than the average gap lowers the estimate, so the rate decays when arrivals stop.
+     * @param time current time
+     * @return arrivals per millisecond
+     */
+    private double arrivalRate(long time) {
+        if (this.averageGap < 0) {
+            return 0;
+        }
+
+        return 1 / Math.max(Math.max(this.averageGap, time - this.lastArrivalTime), 1);
+    }
+
+    /**
+     * Picks the smallest ranking difference with which the client waiting the longest is expected to be matched within the target wait.
+     * The players expected by then are those already waiting within the difference plus the arrivals until the target, of which
+     * the fraction within the difference follows the rankings of the clients waiting now. Once the target is reached, no arrivals
+     * are expected, so the difference is the smallest that matches the client right away. If not even the whole shard can form
+     * a team by then, the difference keeps widening with the time over the target, so the client can be matched across bands.
+     * @param clients clients waiting in the shard
+     * @param playersPerGame number of players to play a game
+     * @param time current time
+     * @return the ranking difference, at least the initial one
+     */
+    public int rankingDifference(ArrayList<Client> clients, int playersPerGame, long time) {
+        this.arrivalRate = this.arrivalRate(time) * 60000;
+        if (clients.isEmpty()) {
+            this.oldestWait = 0;
+            this.expectedPlayers = 0;
+            return QueueShard.INITIAL_RANKING_DIFFERENCE;
+        }
+
+        int[] rankings = new int[clients.size()];
+        Client oldest = clients.get(0);
+        for (int i = 0; i < rankings.length; i++) {
+            Client client = clients.get(i);
+            rankings[i] = client.getPlayer().getRanking();
+            if (client.getQueueArrivalTime() < oldest.getQueueArrivalTime()) {
+                oldest = client;
+            }
+        }
+        Arrays.sort(rankings);
+
+        int ranking = oldest.getPlayer().getRanking();
+        this.oldestWait = time - oldest.getQueueArrivalTime();
+        double arrivals = Math.max(this.targetWait - this.oldestWait, 0) * this.arrivalRate(time);
+
+        // the expected players grow with the difference, so the smallest one is found by binary search
+        int low = QueueShard.INITIAL_RANKING_DIFFERENCE;
+        int high = Math.max(rankings[rankings.length - 1] - rankings[0], low);
+        this.expectedPlayers = ToleranceController.expectedPlayers(rankings, ranking, high, arrivals);
+        if (this.expectedPlayers < playersPerGame - 1) {
+            return (int) Math.min(high + Math.max(this.oldestWait - this.targetWait, 0) / OVERDUE_WIDENING, Integer.MAX_VALUE);
+        }
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ToleranceController.expectedPlayers(rankings, ranking, middle, arrivals) >= playersPerGame - 1) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        this.expectedPlayers = ToleranceController.expectedPlayers(rankings, ranking, low, arrivals);
+        return low;
+    }
+
+    /**
+     * @param rankings sorted rankings of the clients waiting, including the client being matched
+     * @param ranking ranking of the client being matched
+     * @param difference ranking difference
+     * @param arrivals clients expected to arrive at the shard until the target wait
+     * @return the other players expected within the difference of the client by the target wait
+     */
+    private static double expectedPlayers(int[] rankings, int ranking, int difference, double arrivals) {
+        int waiting = ToleranceController.windowSize(rankings, ranking, difference);
+        return waiting - 1 + arrivals * waiting / rankings.length;
+    }
+
+    /**
+     * @param rankings sorted rankings of the clients waiting
+     * @param ranking ranking that the window must include
+     * @param difference width of the window
+     * @return the largest number of clients whose rankings fit in a window of the given width that includes the ranking
+     */
+    private static int windowSize(int[] rankings, int ranking, int difference) {
+        int best = 0;
+        int end = 0;
+        for (int start = 0; start < rankings.length && rankings[start] <= ranking; start++) {
+            if (rankings[start] < ranking - difference) {
+                continue;
+            }
+
+            end = Math.max(end, start);
+            while (end < rankings.length && rankings[end] - rankings[start] <= difference) {
+                end++;
+            }
+            best = Math.max(best, end - start);
+        }
+
+        return best;
+    }
+
+    /**
+     * @return the target wait, in milliseconds
+     */
+    public long getTargetWait() {
+        return this.targetWait;
+    }
+
+    /**
+     * @return the arrival rate estimated by the last decision, in clients per minute
+     */
+    public double getArrivalRate() {
+        return this.arrivalRate;
+    }
+
+    /**
+     * @return the time the oldest client had waited at the last decision, in milliseconds
+     */
+    public long getOldestWait() {
+        return this.oldestWait;
+    }
+
+    /**
+     * @return the other players expected to be within the ranking difference of the oldest client at the last decision
+     */
+    public double getExpectedPlayers() {
+        return this.expectedPlayers;
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class TraceRecorder {
+    public static final int MAGIC = 0x54524332; // "TRC2"
+
+    public static final byte ARRIVAL = 1;
+    public static final byte DISCONNECT = 2;
+    public static final byte RECONNECT = 3;
+    public static final byte MATCH = 4;
+    public static final byte RESULT = 5;
+    public static final byte LAYOUT = 6;
+
+    private static final long FLUSH_INTERVAL = 1000; // minimum time between flushes to the trace file while recording, in milliseconds
+
+    private final DataOutputStream output;
+    private final Clock clock;
+    private final ReentrantLock lock;
+
+    // players are recorded by a sequential id instead of their username, which keeps the trace compact and anonymous
+    private final HashMap<String, Integer> ids;
+    private long lastTime;
+    private long lastFlushTime;
+    private boolean flushed = true;
+
+    /**
+     * Constructs a new TraceRecorder object that writes a new trace to a given file.
+     * The header holds the start time and the Server's shard layout, so the trace is replayed with the same shards.
+     * Each record is a type, the time since the previous record and the ids of the players involved, encoded as variable-length integers.
+     * @param filename name of the trace file
+     * @param clock clock used to timestamp the records
+     * @param layout lowest ranking of each shard's band of the waiting queue
+     * @throws IOException If an I/O error occurred when creating the file
+     */
+    public TraceRecorder(String filename, Clock clock, int[] layout) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        this.clock = clock;
+        this.lock = new ReentrantLock();
+        this.ids = new HashMap<>();
+        this.lastTime = clock.millis();
+        this.lastFlushTime = this.lastTime;
+
+        this.output.writeInt(MAGIC);
+        this.output.writeLong(this.lastTime);
+        TraceRecorder.writeLayout(this.output, layout);
+    }
+
+    /**
+     * Records a Player's arrival at the waiting queue.
+     * @param player the Player who arrived
+     */
+    public void arrival(Player player) {
+        this.record(ARRIVAL, List.of(player), player.getRanking());
+    }
+
+    /**
+     * Records a Player's removal from the waiting queue, because the Player disconnected.
+     * @param player the Player who disconnected
+     */
+    public void disconnect(Player player) {
+        this.record(DISCONNECT, List.of(player), -1);
+    }
+
+    /**
+     * Records a Player's reconnection to the waiting queue.
+     * @param player the Player who reconnected
+     */
+    public void reconnect(Player player) {
+        this.record(RECONNECT, List.of(player), -1);
+    }
+
+    /**
+     * Records a team formed by matchmaking.
+     * @param clients the team
+     */
+    public void match(List<Client> clients) {
+        this.record(MATCH, clients.stream().map(Client::getPlayer).toList(), -1);
+    }
+
+    /**
+     * Records a Player's ranking after a game.
+     * @param player the Player who played
+     */
+    public void result(Player player) {
+        this.record(RESULT, List.of(player), player.getRanking());
+    }
+
+    /**
+     * Records a new shard layout, after the Server rebalanced the ranking bands of the waiting queue.
+     * @param layout lowest ranking of each shard's band
+     */
+    public void layout(int[] layout) {
+        this.lock.lock();
+        try {
+            long currentTime = this.writeTime(LAYOUT);
+            TraceRecorder.writeLayout(this.output, layout);
+            this.recorded(currentTime);
+        } catch (IOException e) {
+            System.out.println("Trace exception: " + e.getMessage() + ".");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending records to the trace file. Called periodically, so the records of an idle Server also reach the file.
+     */
+    public void flush() {
+        this.lock.lock();
+        try {
+            if (!this.flushed) {
+                this.output.flush();
+                this.lastFlushTime = this.clock.millis();
+                this.flushed = true;
+            }
+        } catch (IOException e) {
+            System.out.println("Trace exception: " + e.getMessage() + ".");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending records to the trace file and closes it.
+     * @throws IOException If an I/O error occurred
+     */
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.output.close();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a record to the trace file. Write errors are reported but never interrupt the Server.
+     * @param type type of the record
+     * @param players Players involved
+     * @param ranking ranking to record, or a negative number if the record has no ranking
+     */
+    private void record(byte type, List<Player> players, int ranking) {
+        this.lock.lock();
+        try {
+            long currentTime = this.writeTime(type);
+            if (type == MATCH) {
+                TraceRecorder.writeVarLong(this.output, players.size());
+            }
+            for (Player player : players) {
+                TraceRecorder.writeVarLong(this.output, this.ids.computeIfAbsent(player.getUsername(), (username) -> this.ids.size()));
+            }
+            if (ranking >= 0) {
+                TraceRecorder.writeVarLong(this.output, ranking);
+            }
+            this.recorded(currentTime);
+        } catch (IOException e) {
+            System.out.println("Trace exception: " + e.getMessage() + ".");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a record with its type and the time since the previous record. Must be called while holding the lock.
+     * @param type type of the record
+     * @return the current time
+     * @throws IOException If an I/O error occurred
+     */
+    private long writeTime(byte type) throws IOException {
+        long currentTime = this.clock.millis();
+        this.output.writeByte(type);
+        TraceRecorder.writeVarLong(this.output, Math.max(currentTime - this.lastTime, 0));
+        this.lastTime = Math.max(currentTime, this.lastTime);
+        return currentTime;
+    }
+
+    /**
+     * Flushes the trace file after a record, unless it was flushed recently. Must be called while holding the lock.
+     * @param currentTime time of the record
+     * @throws IOException If an I/O error occurred
+     */
+    private void recorded(long currentTime) throws IOException {
+        this.flushed = false;
+        if (currentTime - this.lastFlushTime > FLUSH_INTERVAL) {
+            this.output.flush();
+            this.lastFlushTime = currentTime;
+            this.flushed = true;
+        }
+    }
+
+    /**
+     * Writes a shard layout: the number of shards followed by the lowest ranking of each shard's band.
+     * @param output stream to write to
+     * @param layout lowest ranking of each shard's band
+     * @throws IOException If an I/O error occurred
+     */
+    static void writeLayout(DataOutput output, int[] layout) throws IOException {
+        TraceRecorder.writeVarLong(output, layout.length);
+        for (int minRanking : layout) {
+            TraceRecorder.writeVarLong(output, minRanking);
+        }
+    }
+
+    /**
+     * Reads a shard layout written by writeLayout.
+     * @param input stream to read from
+     * @return the lowest ranking of each shard's band
+     * @throws IOException If an I/O error occurred or the stream ended
+     */
+    static int[] readLayout(DataInput input) throws IOException {
+        int[] layout = new int[(int) TraceRecorder.readVarLong(input)];
+        for (int i = 0; i < layout.length; i++) {
+            layout[i] = (int) TraceRecorder.readVarLong(input);
+        }
+        return layout;
+    }
+
+    /**
+     * Writes a non-negative number with 7 bits per byte, so that small numbers take a single byte.
+     * @param output stream to write to
+     * @param value non-negative number
+     * @throws IOException If an I/O error occurred
+     */
+    static void writeVarLong(DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by writeVarLong.
+     * @param input stream to read from
+     * @return the number read
+     * @throws IOException If an I/O error occurred or the stream ended
+     */
+    static long readVarLong(DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+public class TypingProgress {
+    /**
+     * Prefix of a delta that appends the following characters to what was typed so far.
+     */
+    public static final char APPEND = '+';
+
+    /**
+     * Prefix of a delta that deletes the given number of characters from the end of what was typed so far.
+     */
+    public static final char DELETE = '-';
+
+    private final String goal;
+    private int typed = 0;
+    private int correct = 0;
+
+    /**
+     * Constructs a new TypingProgress object for a given goal, with nothing typed yet.
+     * @param goal sentence to be written
+     */
+    public TypingProgress(String goal) {
+        this.goal = goal;
+    }
+
+    /**
+     * Checks if a message is a keystroke delta, either "+CHARACTERS" or "-COUNT".
+     * @param message message received from a Client
+     * @return true if the message is a delta; false if otherwise
+     */
+    public static boolean isDelta(String message) {
+        if (message.length() < 2) {
+            return false;
+        }
+
+        if (message.charAt(0) == APPEND) {
+            return true;
+        }
+
+        if (message.charAt(0) != DELETE) {
+            return false;
+        }
+
+        for (int i = 1; i < message.length(); i++) {
+            // only ASCII digits, since other Unicode digits would not be converted correctly in apply
+            if (message.charAt(i) < '0' || message.charAt(i) > '9') {
+                return false;
+            }
+        }
+
+        return message.length() <= 10; // the count must fit in an int
+    }
+
+    /**
+     * @return the number of characters typed so far
+     */
+    public int getTyped() {
+        return this.typed;
+    }
+
+    /**
+     * @return the length of the typed prefix that matches the goal
+     */
+    public int getCorrect() {
+        return this.correct;
+    }
+
+    /**
+     * @return the length of the goal
+     */
+    public int getLength() {
+        return this.goal.length();
+    }
+
+    /**
+     * Checks if there is a mistake in what was typed so far, which must be deleted before typing can progress.
+     * @return true if some typed character does not match the goal; false if otherwise
+     */
+    public boolean hasMistake() {
+        return this.typed > this.correct;
+    }
+
+    /**
+     * Checks if the goal was written exactly.
+     * @return true if everything typed matches the whole goal; false if otherwise
+     */
+    public boolean isComplete() {
+        return this.correct == this.goal.length() && this.typed == this.correct;
+    }
+
+    /**
+     * Applies a delta to this progress, comparing only the new characters with the goal.
+     * Does not allocate, so the cost of each delta is proportional to its length.
+     * @param delta message for which isDelta is true
+     */
+    public void apply(String delta) {
+        if (delta.charAt(0) == APPEND) {
+            for (int i = 1; i < delta.length(); i++) {
+                // a character only counts as correct if everything before it is correct too
+                if (this.correct == this.typed && this.correct < this.goal.length() && this.goal.charAt(this.correct) == delta.charAt(i)) {
+                    this.correct++;
+                }
+                this.typed++;
+            }
+        } else {
+            int count = 0;
+            for (int i = 1; i < delta.length(); i++) {
+                count = count * 10 + (delta.charAt(i) - '0');
+            }
+
+            this.typed = Math.max(0, this.typed - count);
+            this.correct = Math.min(this.correct, this.typed);
+        }
+    }
+}